@@ -0,0 +1,170 @@
+package personal.samdunietz.kdtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/** Density based clustering (DBSCAN) of KDData, using a KDTree for every
+ * neighborhood search.
+ *
+ * A point is a core point if at least minPoints points, counting itself,
+ * are closer to it than eps. Core points closer than eps to each other are
+ * in the same cluster. Every other point joins the cluster of the nearest
+ * core point closer than eps to it, or is noise if there is none.
+ *
+ * Core points are found in parallel by counting neighbors, stopping at
+ * minPoints, without building any neighbor lists. Clusters are then merged
+ * in parallel with a lock free union-find, visiting each core point's
+ * neighbors rather than collecting them.
+ * @author samdunietz
+ *
+ */
+public final class DBSCAN {
+
+  /** Label given to points in no cluster. */
+  public static final int NOISE = -1;
+
+  private DBSCAN() {
+  }
+
+  /** Clusters points.
+   * @param <Q> The type of KDData to cluster.
+   * @param points The points to cluster. All must have the same number of
+   * dimensions, or throws IllegalArgumentException.
+   * @param eps How close points must be to be neighbors. If less than 0,
+   * throws IllegalArgumentException.
+   * @param minPoints How many points, counting itself, must be closer than
+   * eps to a point to make it a core point. If below 1, throws
+   * IllegalArgumentException.
+   * @return The cluster of each point, in the same order as points. Clusters
+   * are numbered from 0 in the order their first point appears, and
+   * points in no cluster are labeled NOISE.
+   */
+  public static <Q extends KDData> int[] cluster(
+      List<Q> points, double eps, int minPoints) {
+    if (points == null) {
+      throw new IllegalArgumentException("points cannot be null");
+    } else if (eps < 0) {
+      throw new IllegalArgumentException("Radius must be 0 or greater");
+    } else if (minPoints < 1) {
+      throw new IllegalArgumentException("minPoints must be at least 1");
+    }
+
+    int n = points.size();
+    List<Indexed> indexed = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      indexed.add(new Indexed(i, points.get(i).getLocData()));
+    }
+    KDTree<Indexed> tree = new KDTree<>(indexed);
+
+    boolean[] core = new boolean[n];
+    IntStream.range(0, n).parallel().forEach(i -> core[i] =
+        tree.countWithinRadius(indexed.get(i), eps, minPoints) >= minPoints);
+
+    AtomicIntegerArray parent = new AtomicIntegerArray(n);
+    for (int i = 0; i < n; i++) {
+      parent.set(i, i);
+    }
+    IntStream.range(0, n).parallel().filter(i -> core[i]).forEach(i ->
+        tree.forEachWithinRadius(indexed.get(i), eps, (neighbor, dist) -> {
+          if (neighbor.index > i && core[neighbor.index]) {
+            union(parent, i, neighbor.index);
+          }
+          return true;
+        }));
+
+    // Border points join the cluster of their nearest core neighbor.
+    int[] root = new int[n];
+    IntStream.range(0, n).parallel().forEach(i -> {
+      if (core[i]) {
+        root[i] = find(parent, i);
+        return;
+      }
+
+      int[] nearest = {-1};
+      double[] nearestDist = {Double.POSITIVE_INFINITY};
+      tree.forEachWithinRadius(indexed.get(i), eps, (neighbor, dist) -> {
+        if (core[neighbor.index] && dist < nearestDist[0]) {
+          nearest[0] = neighbor.index;
+          nearestDist[0] = dist;
+        }
+        return true;
+      });
+      root[i] = nearest[0] < 0 ? NOISE : find(parent, nearest[0]);
+    });
+
+    int[] labels = new int[n];
+    int[] labelOfRoot = new int[n];
+    Arrays.fill(labelOfRoot, NOISE);
+    int numClusters = 0;
+    for (int i = 0; i < n; i++) {
+      if (root[i] == NOISE) {
+        labels[i] = NOISE;
+      } else {
+        if (labelOfRoot[root[i]] == NOISE) {
+          labelOfRoot[root[i]] = numClusters++;
+        }
+        labels[i] = labelOfRoot[root[i]];
+      }
+    }
+    return labels;
+  }
+
+  // Finds the root of i's set, halving the path to it along the way.
+  private static int find(AtomicIntegerArray parent, int i) {
+    while (true) {
+      int p = parent.get(i);
+      if (p == i) {
+        return i;
+      }
+      int grandparent = parent.get(p);
+      parent.compareAndSet(i, p, grandparent);
+      i = grandparent;
+    }
+  }
+
+  // Joins the sets of a and b. The larger root always points to the
+  // smaller, so concurrent unions can't form a cycle.
+  private static void union(AtomicIntegerArray parent, int a, int b) {
+    while (true) {
+      int rootA = find(parent, a);
+      int rootB = find(parent, b);
+      if (rootA == rootB) {
+        return;
+      }
+
+      int low = Math.min(rootA, rootB);
+      int high = Math.max(rootA, rootB);
+      if (parent.compareAndSet(high, high, low)) {
+        return;
+      }
+    }
+  }
+
+  /** A point's coordinates and its index in the input.
+   * @author samdunietz
+   *
+   */
+  private static final class Indexed implements KDData {
+
+    private final int index;
+    private final double[] loc;
+
+    private Indexed(int index, double[] loc) {
+      this.index = index;
+      this.loc = loc;
+    }
+
+    @Override
+    public double[] getLocData() {
+      return loc;
+    }
+
+    @Override
+    public int getDims() {
+      return loc.length;
+    }
+  }
+}
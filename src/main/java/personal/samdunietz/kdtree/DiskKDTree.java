@@ -0,0 +1,306 @@
+package personal.samdunietz.kdtree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+/** KDTree stored in a file written by ExternalKDTreeBuilder, queried
+ * through memory mapping so the tree never has to fit on the heap.
+ *
+ * The file starts with a header: an int marking the format, the number of
+ * dimensions as an int, and the number of points as a long. Then come the
+ * nodes in preorder, each a long id, its coordinates as doubles, and the
+ * size of its left subtree as a long. A node's left child, if any,
+ * directly follows it, and its right child follows the whole left
+ * subtree, so the left subtree size is the offset to the right child. The
+ * dimension a node splits on is its depth modulo the number of dimensions.
+ * Everything is big endian.
+ *
+ * Queries take double[] origins and write results into buffers the caller
+ * provides, like DoubleKDTree. This class is safe to query from several
+ * threads, until it is closed.
+ * @author samdunietz
+ *
+ */
+public final class DiskKDTree implements Closeable {
+
+  static final int MAGIC = 0x4B445452;
+  static final int HEADER_BYTES = 16;
+
+  private final int numDims;
+  private final long size;
+  private final int nodeBytes;
+  private final long nodesPerSegment;
+
+  // The file mapped in pieces of whole nodes, since one mapping can't be
+  // bigger than 2GB. Null once closed.
+  private volatile ByteBuffer[] segments;
+
+  private final static String emptyMessage = "Tree is empty";
+
+  /** Opens a tree file.
+   * @param file A file written by ExternalKDTreeBuilder. If it isn't one,
+   * throws IllegalArgumentException.
+   * @throws IOException If the file can't be read.
+   */
+  public DiskKDTree(Path file) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        continue;
+      }
+      header.flip();
+      if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+        throw new IllegalArgumentException("Not a KDTree file");
+      }
+
+      numDims = header.getInt();
+      size = header.getLong();
+      nodeBytes = nodeBytes(numDims);
+      if (numDims < 1 || channel.size() != HEADER_BYTES + size * nodeBytes) {
+        throw new IllegalArgumentException("Not a KDTree file");
+      }
+
+      nodesPerSegment = Integer.MAX_VALUE / nodeBytes;
+      int numSegments = (int) ((size + nodesPerSegment - 1) / nodesPerSegment);
+      ByteBuffer[] mapped = new ByteBuffer[numSegments];
+      for (int i = 0; i < numSegments; i++) {
+        long first = i * nodesPerSegment;
+        long nodes = Math.min(nodesPerSegment, size - first);
+        mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+            HEADER_BYTES + first * nodeBytes, nodes * nodeBytes);
+      }
+      segments = mapped;
+    }
+  }
+
+  // Bytes per node: the id, the coordinates and the left subtree size.
+  static int nodeBytes(int numDims) {
+    return 8 * (numDims + 2);
+  }
+
+  /** Gets the number of points in the tree.
+   * @return The number of points in the tree.
+   */
+  public long size() {
+    return size;
+  }
+
+  /** Determines if the tree is empty.
+   * @return True if the tree has no points, and false otherwise.
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Gets the number of dimensions of the points in the tree.
+   * @return The number of dimensions of the points in the tree.
+   */
+  public int getNumDims() {
+    return numDims;
+  }
+
+  /** Closes the tree. Queries afterward throw IllegalStateException. The
+   * mapping itself can't be released on demand, so the file stays mapped
+   * until the garbage collector reclaims it, after every query running
+   * when the tree was closed has finished.
+   */
+  @Override
+  public void close() {
+    segments = null;
+  }
+
+  private ByteBuffer[] checkOrigin(double[] origin) {
+    ByteBuffer[] mapped = segments;
+    if (mapped == null) {
+      throw new IllegalStateException("Tree is closed");
+    } else if (origin.length != numDims) {
+      throw new IllegalArgumentException(
+          "Given datum doesn't have same number of dimensions as KDTree");
+    }
+    return mapped;
+  }
+
+  /** Gets the id of the point nearest to a given point.
+   * @param origin The coordinates from which to find the nearest neighbor.
+   * If not the same number of dimensions as the tree, throws
+   * IllegalArgumentException.
+   * @return The id of the nearest point. If the tree is empty, throws
+   * NoSuchElementException.
+   */
+  public long nearestNeighbor(double[] origin) {
+    if (isEmpty()) {
+      throw new NoSuchElementException(emptyMessage);
+    }
+
+    long[] id = new long[1];
+    kNearestNeighbor(origin, 1, id, new double[1]);
+    return id[0];
+  }
+
+  /** Gets the k nearest points to a given point.
+   * @param origin The coordinates from which to find the nearest
+   * neighbors. If not the same number of dimensions as the tree, throws
+   * IllegalArgumentException.
+   * @param k The number of nearest neighbors to find. If below 1 or longer
+   * than either buffer, throws IllegalArgumentException.
+   * @param idsOut Buffer the ids of the nearest points are written to,
+   * nearest first.
+   * @param distsOut Buffer the euclidian distance of each point in idsOut
+   * is written to.
+   * @return The number of points written, which is k unless the tree has
+   * fewer than k points.
+   */
+  public int kNearestNeighbor(
+      double[] origin, int k, long[] idsOut, double[] distsOut) {
+    if (k <= 0) {
+      throw new IllegalArgumentException(
+          "ERROR: k must be an integer greater than zero.");
+    } else if (k > idsOut.length || k > distsOut.length) {
+      throw new IllegalArgumentException("Buffers must have room for k results");
+    }
+    ByteBuffer[] mapped = checkOrigin(origin);
+
+    // idsOut and distsOut are used as a max heap on squared distance,
+    // holding node indices until the search is done.
+    int count = size == 0
+        ? 0
+        : knnHelper(mapped, origin, 0, size, 0, k, idsOut, distsOut, 0);
+    DistanceHeap.sortHeap(idsOut, distsOut, count);
+    for (int i = 0; i < count; i++) {
+      idsOut[i] = id(mapped, idsOut[i]);
+      distsOut[i] = Math.sqrt(distsOut[i]);
+    }
+    return count;
+  }
+
+  // Searches the subtree of subtreeSize nodes rooted at node index curr.
+  private int knnHelper(ByteBuffer[] mapped, double[] origin, long curr,
+      long subtreeSize, int depth, int k, long[] heap, double[] heapDists,
+      int count) {
+    count = DistanceHeap.offer(curr, squaredDist(mapped, origin, curr), k,
+        heap, heapDists, count);
+
+    int dim = depth % numDims;
+    double diff = origin[dim] - component(mapped, curr, dim);
+    long leftSize = leftSize(mapped, curr);
+    long rightSize = subtreeSize - 1 - leftSize;
+    long left = curr + 1;
+    long right = curr + 1 + leftSize;
+
+    boolean nearIsLeft = diff < 0;
+    long nearSize = nearIsLeft ? leftSize : rightSize;
+    long farSize = nearIsLeft ? rightSize : leftSize;
+    if (nearSize > 0) {
+      count = knnHelper(mapped, origin, nearIsLeft ? left : right, nearSize,
+          depth + 1, k, heap, heapDists, count);
+    }
+    if (farSize > 0 && (count < k || diff * diff < heapDists[0])) {
+      count = knnHelper(mapped, origin, nearIsLeft ? right : left, farSize,
+          depth + 1, k, heap, heapDists, count);
+    }
+    return count;
+  }
+
+  /** Gets all points within a given radius of a given point.
+   * @param origin The coordinates from which to find points within radius.
+   * If not the same number of dimensions as the tree, throws
+   * IllegalArgumentException.
+   * @param radius The euclidian radius within which to give results. If
+   * less than 0, throws IllegalArgumentException.
+   * @param idsOut Buffer the ids of the points found are written to.
+   * @param distsOut Buffer the euclidian distance of each point in idsOut
+   * is written to. Must be the same length as idsOut.
+   * @return The number of points within radius. If that is no more than
+   * the buffers' length, they all were written, sorted by distance.
+   * Otherwise only the first buffer-length points found were written, in no
+   * particular order, and the caller can retry with larger buffers.
+   */
+  public long findWithinRadius(
+      double[] origin, double radius, long[] idsOut, double[] distsOut) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("Radius must be 0 or greater");
+    } else if (idsOut.length != distsOut.length) {
+      throw new IllegalArgumentException("Buffers must be the same length");
+    }
+    ByteBuffer[] mapped = checkOrigin(origin);
+
+    long count = size == 0
+        ? 0
+        : fwrHelper(mapped, origin, radius * radius, 0, size, 0, idsOut,
+            distsOut, 0);
+    int written = (int) Math.min(count, idsOut.length);
+    if (count <= idsOut.length) {
+      DistanceHeap.sortByDistance(idsOut, distsOut, written);
+    }
+    for (int i = 0; i < written; i++) {
+      distsOut[i] = Math.sqrt(distsOut[i]);
+    }
+    return count;
+  }
+
+  private long fwrHelper(ByteBuffer[] mapped, double[] origin,
+      double radiusSquared, long curr, long subtreeSize, int depth,
+      long[] idsOut, double[] distsOut, long count) {
+    double dist = squaredDist(mapped, origin, curr);
+    if (dist < radiusSquared) {
+      if (count < idsOut.length) {
+        idsOut[(int) count] = id(mapped, curr);
+        distsOut[(int) count] = dist;
+      }
+      count++;
+    }
+
+    int dim = depth % numDims;
+    double diff = origin[dim] - component(mapped, curr, dim);
+    long leftSize = leftSize(mapped, curr);
+    long rightSize = subtreeSize - 1 - leftSize;
+    if (leftSize > 0 && (diff < 0 || diff * diff < radiusSquared)) {
+      count = fwrHelper(mapped, origin, radiusSquared, curr + 1, leftSize,
+          depth + 1, idsOut, distsOut, count);
+    }
+    if (rightSize > 0 && (diff >= 0 || diff * diff < radiusSquared)) {
+      count = fwrHelper(mapped, origin, radiusSquared, curr + 1 + leftSize,
+          rightSize, depth + 1, idsOut, distsOut, count);
+    }
+    return count;
+  }
+
+  // Reading the fields of the node at a given index.
+
+  private ByteBuffer segment(ByteBuffer[] mapped, long node) {
+    return mapped[(int) (node / nodesPerSegment)];
+  }
+
+  private int offset(long node) {
+    return (int) (node % nodesPerSegment) * nodeBytes;
+  }
+
+  private long id(ByteBuffer[] mapped, long node) {
+    return segment(mapped, node).getLong(offset(node));
+  }
+
+  private double component(ByteBuffer[] mapped, long node, int dim) {
+    return segment(mapped, node).getDouble(offset(node) + 8 + 8 * dim);
+  }
+
+  private long leftSize(ByteBuffer[] mapped, long node) {
+    return segment(mapped, node).getLong(offset(node) + 8 + 8 * numDims);
+  }
+
+  private double squaredDist(ByteBuffer[] mapped, double[] origin, long node) {
+    ByteBuffer segment = segment(mapped, node);
+    int coords = offset(node) + 8;
+    double distanceSquared = 0;
+    for (int i = 0; i < numDims; i++) {
+      double diff = origin[i] - segment.getDouble(coords + 8 * i);
+      distanceSquared += diff * diff;
+    }
+    return distanceSquared;
+  }
+}
@@ -0,0 +1,187 @@
+package personal.samdunietz.kdtree;
+
+/** Max heap operations on parallel id and distance arrays, shared by the
+ * trees that write query results into buffers the caller provides.
+ *
+ * The heap is ordered on distance, so while a kNN search runs its root is
+ * the farthest of the best found so far. Each operation comes in an int
+ * and a long flavor, for trees whose positions fit in an int and those
+ * whose positions don't.
+ * @author samdunietz
+ *
+ */
+final class DistanceHeap {
+
+  private DistanceHeap() {
+  }
+
+  /** Adds a point to a max heap of at most k points, replacing the
+   * farthest if the heap is full and the point is nearer.
+   * @param id The id of the point.
+   * @param dist The distance of the point.
+   * @param k The most points the heap holds.
+   * @param ids The ids in the heap.
+   * @param dists The distances in the heap.
+   * @param count The number of points in the heap.
+   * @return The new number of points in the heap.
+   */
+  static int offer(
+      int id, double dist, int k, int[] ids, double[] dists, int count) {
+    if (count < k) {
+      ids[count] = id;
+      dists[count] = dist;
+      siftUp(ids, dists, count);
+      return count + 1;
+    } else if (dist < dists[0]) {
+      ids[0] = id;
+      dists[0] = dist;
+      siftDown(ids, dists, 0, count);
+    }
+    return count;
+  }
+
+  /** Adds a point to a max heap of at most k points, replacing the
+   * farthest if the heap is full and the point is nearer.
+   * @param id The id of the point.
+   * @param dist The distance of the point.
+   * @param k The most points the heap holds.
+   * @param ids The ids in the heap.
+   * @param dists The distances in the heap.
+   * @param count The number of points in the heap.
+   * @return The new number of points in the heap.
+   */
+  static int offer(
+      long id, double dist, int k, long[] ids, double[] dists, int count) {
+    if (count < k) {
+      ids[count] = id;
+      dists[count] = dist;
+      siftUp(ids, dists, count);
+      return count + 1;
+    } else if (dist < dists[0]) {
+      ids[0] = id;
+      dists[0] = dist;
+      siftDown(ids, dists, 0, count);
+    }
+    return count;
+  }
+
+  /** Sorts a max heap in place, nearest first.
+   * @param ids The ids in the heap.
+   * @param dists The distances in the heap.
+   * @param count The number of points in the heap.
+   */
+  static void sortHeap(int[] ids, double[] dists, int count) {
+    for (int end = count - 1; end > 0; end--) {
+      swap(ids, dists, 0, end);
+      siftDown(ids, dists, 0, end);
+    }
+  }
+
+  /** Sorts a max heap in place, nearest first.
+   * @param ids The ids in the heap.
+   * @param dists The distances in the heap.
+   * @param count The number of points in the heap.
+   */
+  static void sortHeap(long[] ids, double[] dists, int count) {
+    for (int end = count - 1; end > 0; end--) {
+      swap(ids, dists, 0, end);
+      siftDown(ids, dists, 0, end);
+    }
+  }
+
+  /** Heapsorts the first count entries of the buffers by distance, without
+   * allocating.
+   * @param ids The ids to sort.
+   * @param dists The distance of each id.
+   * @param count The number of entries to sort.
+   */
+  static void sortByDistance(int[] ids, double[] dists, int count) {
+    for (int i = 1; i < count; i++) {
+      siftUp(ids, dists, i);
+    }
+    sortHeap(ids, dists, count);
+  }
+
+  /** Heapsorts the first count entries of the buffers by distance, without
+   * allocating.
+   * @param ids The ids to sort.
+   * @param dists The distance of each id.
+   * @param count The number of entries to sort.
+   */
+  static void sortByDistance(long[] ids, double[] dists, int count) {
+    for (int i = 1; i < count; i++) {
+      siftUp(ids, dists, i);
+    }
+    sortHeap(ids, dists, count);
+  }
+
+  private static void siftUp(int[] ids, double[] dists, int i) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (dists[parent] >= dists[i]) {
+        return;
+      }
+      swap(ids, dists, parent, i);
+      i = parent;
+    }
+  }
+
+  private static void siftUp(long[] ids, double[] dists, int i) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (dists[parent] >= dists[i]) {
+        return;
+      }
+      swap(ids, dists, parent, i);
+      i = parent;
+    }
+  }
+
+  private static void siftDown(int[] ids, double[] dists, int i, int count) {
+    int largest;
+    while ((largest = largestChild(dists, i, count)) != i) {
+      swap(ids, dists, i, largest);
+      i = largest;
+    }
+  }
+
+  private static void siftDown(long[] ids, double[] dists, int i, int count) {
+    int largest;
+    while ((largest = largestChild(dists, i, count)) != i) {
+      swap(ids, dists, i, largest);
+      i = largest;
+    }
+  }
+
+  // Gets whichever of i and its children has the largest distance.
+  private static int largestChild(double[] dists, int i, int count) {
+    int largest = i;
+    int left = 2 * i + 1;
+    int right = left + 1;
+    if (left < count && dists[left] > dists[largest]) {
+      largest = left;
+    }
+    if (right < count && dists[right] > dists[largest]) {
+      largest = right;
+    }
+    return largest;
+  }
+
+  private static void swap(int[] ids, double[] dists, int i, int j) {
+    int id = ids[i];
+    ids[i] = ids[j];
+    ids[j] = id;
+    double dist = dists[i];
+    dists[i] = dists[j];
+    dists[j] = dist;
+  }
+
+  private static void swap(long[] ids, double[] dists, int i, int j) {
+    long id = ids[i];
+    ids[i] = ids[j];
+    ids[j] = id;
+    double dist = dists[i];
+    dists[i] = dists[j];
+    dists[j] = dist;
+  }
+}
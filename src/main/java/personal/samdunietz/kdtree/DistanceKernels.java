@@ -0,0 +1,108 @@
+package personal.samdunietz.kdtree;
+
+/** Distance computations shared by the trees and indexes in this package.
+ *
+ * The point to point loops are unrolled by four into independent sums, so
+ * the additions don't all wait on one another and the JIT can keep several
+ * in flight (or vectorize them). This matters for high dimensional data,
+ * where distance computation is nearly all of a query's cost.
+ * @author samdunietz
+ *
+ */
+final class DistanceKernels {
+
+  private DistanceKernels() {
+  }
+
+  /** Gets the squared euclidian distance between two points.
+   * @param a The first point.
+   * @param b The second point. Must be the same length as a.
+   * @return The sum of the squared differences of each component.
+   */
+  static double squaredDistance(double[] a, double[] b) {
+    return squaredDistance(a, 0, b, 0, a.length);
+  }
+
+  /** Gets the squared euclidian distance between two points stored at
+   * offsets into larger arrays.
+   * @param a The array holding the first point.
+   * @param aOffset The index of the first point's first component.
+   * @param b The array holding the second point.
+   * @param bOffset The index of the second point's first component.
+   * @param numDims The number of components in each point.
+   * @return The sum of the squared differences of each component.
+   */
+  static double squaredDistance(
+      double[] a, int aOffset, double[] b, int bOffset, int numDims) {
+    double sum0 = 0;
+    double sum1 = 0;
+    double sum2 = 0;
+    double sum3 = 0;
+    int i = 0;
+    for (; i + 3 < numDims; i += 4) {
+      double diff0 = a[aOffset + i] - b[bOffset + i];
+      double diff1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+      double diff2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+      double diff3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+      sum0 += diff0 * diff0;
+      sum1 += diff1 * diff1;
+      sum2 += diff2 * diff2;
+      sum3 += diff3 * diff3;
+    }
+    for (; i < numDims; i++) {
+      double diff = a[aOffset + i] - b[bOffset + i];
+      sum0 += diff * diff;
+    }
+    return (sum0 + sum1) + (sum2 + sum3);
+  }
+
+  /** Gets the smallest possible distance from a point to anything in a
+   * box.
+   * @param min The lower corner of the box.
+   * @param max The upper corner of the box.
+   * @param loc The point. Must be the same length as min and max.
+   * @return The euclidian distance from loc to the nearest point in the
+   * box, which is 0 if loc is inside it.
+   */
+  static double boxDistance(double[] min, double[] max, double[] loc) {
+    return boxDistance(loc, loc, min, max);
+  }
+
+  /** Gets the smallest possible distance between anything in one box and
+   * anything in another.
+   * @param minA The lower corner of the first box.
+   * @param maxA The upper corner of the first box.
+   * @param minB The lower corner of the second box.
+   * @param maxB The upper corner of the second box.
+   * @return The euclidian distance between the nearest points of the two
+   * boxes, which is 0 if they overlap.
+   */
+  static double boxDistance(
+      double[] minA, double[] maxA, double[] minB, double[] maxB) {
+    double distanceSquared = 0;
+    for (int i = 0; i < minA.length; i++) {
+      double gap = Math.max(minB[i] - maxA[i], minA[i] - maxB[i]);
+      if (gap > 0) {
+        distanceSquared += gap * gap;
+      }
+    }
+    return Math.sqrt(distanceSquared);
+  }
+
+  /** Gets the largest possible distance from a point to anything in a box.
+   * @param min The lower corner of the box.
+   * @param max The upper corner of the box.
+   * @param loc The point. Must be the same length as min and max.
+   * @return The euclidian distance from loc to the farthest corner of the
+   * box.
+   */
+  static double farthestBoxDistance(
+      double[] min, double[] max, double[] loc) {
+    double distanceSquared = 0;
+    for (int i = 0; i < loc.length; i++) {
+      double gap = Math.max(loc[i] - min[i], max[i] - loc[i]);
+      distanceSquared += gap * gap;
+    }
+    return Math.sqrt(distanceSquared);
+  }
+}
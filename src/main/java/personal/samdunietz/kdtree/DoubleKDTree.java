@@ -0,0 +1,717 @@
+package personal.samdunietz.kdtree;
+
+import java.util.NoSuchElementException;
+
+/** KDTree over raw double coordinates with int ids, for callers that
+ * don't have KDData objects to store.
+ *
+ * Points are kept in flat arrays rather than in nodes, in an order chosen
+ * by a Layout, with each point's children found through an array of child
+ * positions. Queries take double[] origins and write results into buffers
+ * the caller provides, so they allocate nothing.
+ *
+ * Trees of 2 or 3 dimensions, the most common by far, keep each dimension
+ * in its own array instead, and are queried by code written for exactly
+ * that many dimensions, with the distance math unrolled and no modulo to
+ * find each level's dimension.
+ *
+ * This class is unmodifiable and safe to query from several threads.
+ * @author samdunietz
+ *
+ */
+public final class DoubleKDTree {
+
+  private final int numDims;
+  private final int size;
+  // Coordinates of the point at each position, one point after another.
+  // Null for 2 and 3 dimensional trees, which use xs, ys and zs instead.
+  private final double[] coords;
+  private final double[] xs;
+  private final double[] ys;
+  private final double[] zs;
+  private final int[] ids;
+  // Positions of the left and right child of the point at position i are
+  // children[2 * i] and children[2 * i + 1], or -1 if there is none.
+  private final int[] children;
+  private final int root;
+
+  // With at least as many dimensions as log2(size), pruning can't skip
+  // enough of the tree to beat simply scanning every point in order.
+  private final boolean scan;
+
+  private final static String emptyMessage = "Tree is empty";
+
+  /** How points are ordered in memory. Queries give the same results
+   * with either layout; only the memory access pattern differs.
+   * @author samdunietz
+   *
+   */
+  public enum Layout {
+
+    /** Each subtree is stored contiguously: left subtree, root, then right
+     * subtree. Simple and fast to build, but the nodes near the top of the
+     * tree, which every query visits, are spread across the whole array. */
+    IN_ORDER,
+
+    /** Van Emde Boas order: the top half of the tree's levels is stored as
+     * one block, followed by each of the subtrees hanging off it, with
+     * every block laid out the same way recursively. A root to leaf path
+     * then touches O(log_B n) cache lines for any cache line size B,
+     * which pays off once the tree is much bigger than the CPU caches. */
+    VAN_EMDE_BOAS
+  }
+
+  /** Constructs a DoubleKDTree from an array of points.
+   * @param points The points, each an array of coordinates. All must have
+   * the same, nonzero, number of dimensions, or throws
+   * IllegalArgumentException.
+   * @param ids The id of each point, or null to use each point's index in
+   * points. If not null, must be the same length as points.
+   */
+  public DoubleKDTree(double[][] points, int[] ids) {
+    this(points, ids, Layout.IN_ORDER);
+  }
+
+  /** Constructs a DoubleKDTree from an array of points.
+   * @param points The points, as in DoubleKDTree(double[][], int[]).
+   * @param ids The id of each point, or null to use each point's index.
+   * @param layout How to order the points in memory.
+   */
+  public DoubleKDTree(double[][] points, int[] ids, Layout layout) {
+    this(flatten(points), points.length == 0 ? 1 : points[0].length, ids,
+        layout);
+  }
+
+  /** Constructs a DoubleKDTree from a flat array of coordinates.
+   * @param flatCoords The coordinates of every point, one point after
+   * another. The length must be a multiple of numDims, or throws
+   * IllegalArgumentException.
+   * @param numDims The number of dimensions of each point. If below 1,
+   * throws IllegalArgumentException.
+   * @param ids The id of each point, or null to use each point's index.
+   * If not null, must have one id per point.
+   */
+  public DoubleKDTree(double[] flatCoords, int numDims, int[] ids) {
+    this(flatCoords, numDims, ids, Layout.IN_ORDER);
+  }
+
+  /** Constructs a DoubleKDTree from a flat array of coordinates.
+   * @param flatCoords The coordinates of every point, as in
+   * DoubleKDTree(double[], int, int[]).
+   * @param numDims The number of dimensions of each point.
+   * @param ids The id of each point, or null to use each point's index.
+   * @param layout How to order the points in memory.
+   */
+  public DoubleKDTree(
+      double[] flatCoords, int numDims, int[] ids, Layout layout) {
+    if (flatCoords == null) {
+      throw new IllegalArgumentException("coordinates cannot be null");
+    } else if (numDims < 1) {
+      throw new IllegalArgumentException("Datum cannot have 0 dimensions");
+    } else if (flatCoords.length % numDims != 0) {
+      throw new IllegalArgumentException(
+          "All datum must have same number of dimensions");
+    }
+
+    this.numDims = numDims;
+    size = flatCoords.length / numDims;
+    if (ids != null && ids.length != size) {
+      throw new IllegalArgumentException("Must have exactly one id per point");
+    }
+
+    int[] perm = new int[size];
+    for (int i = 0; i < size; i++) {
+      perm[i] = i;
+    }
+    buildSubtree(flatCoords, perm, 0, size, 0);
+
+    // perm is now in in-order layout. Work out where each point goes in
+    // the requested layout, then move everything there.
+    int[] position = new int[size];
+    if (layout == Layout.VAN_EMDE_BOAS) {
+      vebOrder(position, 0, size, height(size), 0);
+    } else {
+      for (int i = 0; i < size; i++) {
+        position[i] = i;
+      }
+    }
+
+    boolean specialized = numDims == 2 || numDims == 3;
+    coords = specialized ? null : new double[flatCoords.length];
+    xs = specialized ? new double[size] : null;
+    ys = specialized ? new double[size] : null;
+    zs = numDims == 3 ? new double[size] : null;
+    this.ids = new int[size];
+    children = new int[2 * size];
+    for (int i = 0; i < size; i++) {
+      int src = perm[i] * numDims;
+      int pos = position[i];
+      if (specialized) {
+        xs[pos] = flatCoords[src];
+        ys[pos] = flatCoords[src + 1];
+        if (zs != null) {
+          zs[pos] = flatCoords[src + 2];
+        }
+      } else {
+        System.arraycopy(flatCoords, src, coords, pos * numDims, numDims);
+      }
+      this.ids[pos] = ids == null ? perm[i] : ids[perm[i]];
+    }
+    root = linkChildren(position, 0, size);
+    scan = numDims >= 31 || size >> numDims == 0;
+  }
+
+  // Height of a tree of n points built by splitting at the middle.
+  private static int height(int n) {
+    return 32 - Integer.numberOfLeadingZeros(n);
+  }
+
+  // Records the position of each child of the subtree over in-order range
+  // [lo, hi), returning the position of its root.
+  private int linkChildren(int[] position, int lo, int hi) {
+    if (lo >= hi) {
+      return -1;
+    }
+    int mid = (lo + hi) >>> 1;
+    int pos = position[mid];
+    children[2 * pos] = linkChildren(position, lo, mid);
+    children[2 * pos + 1] = linkChildren(position, mid + 1, hi);
+    return pos;
+  }
+
+  // Assigns van Emde Boas positions, starting at next, to the top height
+  // levels of the subtree over in-order range [lo, hi). Returns the next
+  // free position.
+  private static int vebOrder(
+      int[] position, int lo, int hi, int height, int next) {
+    if (lo >= hi) {
+      return next;
+    } else if (height == 1) {
+      position[(lo + hi) >>> 1] = next;
+      return next + 1;
+    }
+
+    int top = height / 2;
+    next = vebOrder(position, lo, hi, top, next);
+    return vebBottoms(position, lo, hi, top, height - top, next);
+  }
+
+  // Lays out, left to right, each subtree rooted depth levels below the
+  // root of [lo, hi), down to bottom levels.
+  private static int vebBottoms(
+      int[] position, int lo, int hi, int depth, int bottom, int next) {
+    if (lo >= hi) {
+      return next;
+    } else if (depth == 0) {
+      return vebOrder(position, lo, hi, bottom, next);
+    }
+
+    int mid = (lo + hi) >>> 1;
+    next = vebBottoms(position, lo, mid, depth - 1, bottom, next);
+    return vebBottoms(position, mid + 1, hi, depth - 1, bottom, next);
+  }
+
+  private static double[] flatten(double[][] points) {
+    if (points == null) {
+      throw new IllegalArgumentException("points cannot be null");
+    }
+    int numDims = points.length == 0 ? 1 : points[0].length;
+    double[] flat = new double[points.length * numDims];
+    for (int i = 0; i < points.length; i++) {
+      if (points[i].length != numDims) {
+        throw new IllegalArgumentException(
+            "All datum must have same number of dimensions");
+      }
+      System.arraycopy(points[i], 0, flat, i * numDims, numDims);
+    }
+    return flat;
+  }
+
+  // Orders perm[lo, hi) so the middle point is the median on the current
+  // dimension, with smaller points before it and larger ones after.
+  private void buildSubtree(
+      double[] src, int[] perm, int lo, int hi, int depth) {
+    if (hi - lo < 2) {
+      return;
+    }
+
+    int mid = (lo + hi) >>> 1;
+    select(src, perm, lo, hi - 1, mid, depth % numDims);
+    buildSubtree(src, perm, lo, mid, depth + 1);
+    buildSubtree(src, perm, mid + 1, hi, depth + 1);
+  }
+
+  // Quickselect on perm[lo, hi] so that perm[nth] holds the point that
+  // would be there if sorted on dim.
+  private void select(
+      double[] src, int[] perm, int lo, int hi, int nth, int dim) {
+    while (hi > lo) {
+      double pivot = src[perm[(lo + hi) >>> 1] * numDims + dim];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (src[perm[i] * numDims + dim] < pivot) {
+          i++;
+        }
+        while (src[perm[j] * numDims + dim] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int tmp = perm[i];
+          perm[i] = perm[j];
+          perm[j] = tmp;
+          i++;
+          j--;
+        }
+      }
+      if (nth <= j) {
+        hi = j;
+      } else if (nth >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  /** Gets the number of points in the tree.
+   * @return The number of points in the tree.
+   */
+  public int size() {
+    return size;
+  }
+
+  /** Determines if the tree is empty.
+   * @return True if the tree has no points, and false otherwise.
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Gets the number of dimensions of the points in the tree.
+   * @return The number of dimensions of the points in the tree.
+   */
+  public int getNumDims() {
+    return numDims;
+  }
+
+  private void checkOrigin(double[] origin) {
+    if (origin.length != numDims) {
+      throw new IllegalArgumentException(
+          "Given datum doesn't have same number of dimensions as KDTree");
+    }
+  }
+
+  /** Gets the id of the point nearest to a given point.
+   * @param origin The coordinates from which to find the nearest neighbor.
+   * If not the same number of dimensions as the tree, throws
+   * IllegalArgumentException.
+   * @return The id of the nearest point. If the tree is empty, throws
+   * NoSuchElementException.
+   */
+  public int nearestNeighbor(double[] origin) {
+    if (isEmpty()) {
+      throw new NoSuchElementException(emptyMessage);
+    }
+    checkOrigin(origin);
+
+    if (scan) {
+      int best = 0;
+      double bestDist = squaredDist(origin, 0);
+      for (int i = 1; i < size; i++) {
+        double dist = squaredDist(origin, i);
+        if (dist < bestDist) {
+          best = i;
+          bestDist = dist;
+        }
+      }
+      return ids[best];
+    }
+    double rootDist = squaredDist(origin, root);
+    if (numDims == 2) {
+      return ids[nnHelper2(origin[0], origin[1], root, true, root, rootDist)];
+    } else if (numDims == 3) {
+      return ids[nnHelper3(
+          origin[0], origin[1], origin[2], root, 0, root, rootDist)];
+    }
+    return ids[nnHelper(origin, root, 0, root, rootDist)];
+  }
+
+  private int nnHelper(
+      double[] origin, int curr, int depth, int best, double bestDist) {
+    if (curr < 0) {
+      return best;
+    }
+
+    double dist = squaredDist(origin, curr);
+    if (dist < bestDist) {
+      best = curr;
+      bestDist = dist;
+    }
+
+    int dim = depth % numDims;
+    double diff = origin[dim] - coords[curr * numDims + dim];
+    int near = children[2 * curr + (diff < 0 ? 0 : 1)];
+    int far = children[2 * curr + (diff < 0 ? 1 : 0)];
+
+    int newBest = nnHelper(origin, near, depth + 1, best, bestDist);
+    if (newBest != best) {
+      best = newBest;
+      bestDist = squaredDist(origin, best);
+    }
+
+    if (diff * diff < bestDist) {
+      best = nnHelper(origin, far, depth + 1, best, bestDist);
+    }
+    return best;
+  }
+
+  // nnHelper for 2 dimensions, splitting on x if splitX and on y if not.
+  private int nnHelper2(double x, double y, int curr, boolean splitX,
+      int best, double bestDist) {
+    if (curr < 0) {
+      return best;
+    }
+
+    double dx = x - xs[curr];
+    double dy = y - ys[curr];
+    double dist = dx * dx + dy * dy;
+    if (dist < bestDist) {
+      best = curr;
+      bestDist = dist;
+    }
+
+    double diff = splitX ? dx : dy;
+    int near = children[2 * curr + (diff < 0 ? 0 : 1)];
+    int far = children[2 * curr + (diff < 0 ? 1 : 0)];
+
+    int newBest = nnHelper2(x, y, near, !splitX, best, bestDist);
+    if (newBest != best) {
+      best = newBest;
+      bestDist = squaredDist2(x, y, best);
+    }
+
+    if (diff * diff < bestDist) {
+      best = nnHelper2(x, y, far, !splitX, best, bestDist);
+    }
+    return best;
+  }
+
+  // nnHelper for 3 dimensions, splitting on dim.
+  private int nnHelper3(double x, double y, double z, int curr, int dim,
+      int best, double bestDist) {
+    if (curr < 0) {
+      return best;
+    }
+
+    double dx = x - xs[curr];
+    double dy = y - ys[curr];
+    double dz = z - zs[curr];
+    double dist = dx * dx + dy * dy + dz * dz;
+    if (dist < bestDist) {
+      best = curr;
+      bestDist = dist;
+    }
+
+    double diff = dim == 0 ? dx : dim == 1 ? dy : dz;
+    int near = children[2 * curr + (diff < 0 ? 0 : 1)];
+    int far = children[2 * curr + (diff < 0 ? 1 : 0)];
+    int nextDim = dim == 2 ? 0 : dim + 1;
+
+    int newBest = nnHelper3(x, y, z, near, nextDim, best, bestDist);
+    if (newBest != best) {
+      best = newBest;
+      bestDist = squaredDist3(x, y, z, best);
+    }
+
+    if (diff * diff < bestDist) {
+      best = nnHelper3(x, y, z, far, nextDim, best, bestDist);
+    }
+    return best;
+  }
+
+  /** Gets the k nearest points to a given point.
+   * @param origin The coordinates from which to find the nearest
+   * neighbors. If not the same number of dimensions as the tree, throws
+   * IllegalArgumentException.
+   * @param k The number of nearest neighbors to find. If below 1 or longer
+   * than either buffer, throws IllegalArgumentException.
+   * @param idsOut Buffer the ids of the nearest points are written to,
+   * nearest first.
+   * @param distsOut Buffer the euclidian distance of each point in idsOut
+   * is written to.
+   * @return The number of points written, which is k unless the tree has
+   * fewer than k points.
+   */
+  public int kNearestNeighbor(
+      double[] origin, int k, int[] idsOut, double[] distsOut) {
+    if (k <= 0) {
+      throw new IllegalArgumentException(
+          "ERROR: k must be an integer greater than zero.");
+    } else if (k > idsOut.length || k > distsOut.length) {
+      throw new IllegalArgumentException("Buffers must have room for k results");
+    }
+    checkOrigin(origin);
+
+    // idsOut and distsOut are used as a max heap on squared distance,
+    // holding tree positions until the search is done.
+    int count = 0;
+    if (scan) {
+      for (int i = 0; i < size; i++) {
+        count = DistanceHeap.offer(
+            i, squaredDist(origin, i), k, idsOut, distsOut, count);
+      }
+    } else if (numDims == 2) {
+      count = knnHelper2(
+          origin[0], origin[1], root, true, k, idsOut, distsOut, 0);
+    } else if (numDims == 3) {
+      count = knnHelper3(
+          origin[0], origin[1], origin[2], root, 0, k, idsOut, distsOut, 0);
+    } else {
+      count = knnHelper(origin, root, 0, k, idsOut, distsOut, 0);
+    }
+    DistanceHeap.sortHeap(idsOut, distsOut, count);
+    for (int i = 0; i < count; i++) {
+      idsOut[i] = ids[idsOut[i]];
+      distsOut[i] = Math.sqrt(distsOut[i]);
+    }
+    return count;
+  }
+
+  private int knnHelper(double[] origin, int curr, int depth, int k,
+      int[] heap, double[] heapDists, int count) {
+    if (curr < 0) {
+      return count;
+    }
+
+    count = DistanceHeap.offer(
+        curr, squaredDist(origin, curr), k, heap, heapDists, count);
+
+    int dim = depth % numDims;
+    double diff = origin[dim] - coords[curr * numDims + dim];
+    int near = children[2 * curr + (diff < 0 ? 0 : 1)];
+    int far = children[2 * curr + (diff < 0 ? 1 : 0)];
+
+    count = knnHelper(origin, near, depth + 1, k, heap, heapDists, count);
+    if (count < k || diff * diff < heapDists[0]) {
+      count = knnHelper(origin, far, depth + 1, k, heap, heapDists, count);
+    }
+    return count;
+  }
+
+  // knnHelper for 2 dimensions, splitting on x if splitX and on y if not.
+  private int knnHelper2(double x, double y, int curr, boolean splitX,
+      int k, int[] heap, double[] heapDists, int count) {
+    if (curr < 0) {
+      return count;
+    }
+
+    double dx = x - xs[curr];
+    double dy = y - ys[curr];
+    count = DistanceHeap.offer(
+        curr, dx * dx + dy * dy, k, heap, heapDists, count);
+
+    double diff = splitX ? dx : dy;
+    int near = children[2 * curr + (diff < 0 ? 0 : 1)];
+    int far = children[2 * curr + (diff < 0 ? 1 : 0)];
+
+    count = knnHelper2(x, y, near, !splitX, k, heap, heapDists, count);
+    if (count < k || diff * diff < heapDists[0]) {
+      count = knnHelper2(x, y, far, !splitX, k, heap, heapDists, count);
+    }
+    return count;
+  }
+
+  // knnHelper for 3 dimensions, splitting on dim.
+  private int knnHelper3(double x, double y, double z, int curr, int dim,
+      int k, int[] heap, double[] heapDists, int count) {
+    if (curr < 0) {
+      return count;
+    }
+
+    double dx = x - xs[curr];
+    double dy = y - ys[curr];
+    double dz = z - zs[curr];
+    count = DistanceHeap.offer(
+        curr, dx * dx + dy * dy + dz * dz, k, heap, heapDists, count);
+
+    double diff = dim == 0 ? dx : dim == 1 ? dy : dz;
+    int near = children[2 * curr + (diff < 0 ? 0 : 1)];
+    int far = children[2 * curr + (diff < 0 ? 1 : 0)];
+    int nextDim = dim == 2 ? 0 : dim + 1;
+
+    count = knnHelper3(x, y, z, near, nextDim, k, heap, heapDists, count);
+    if (count < k || diff * diff < heapDists[0]) {
+      count = knnHelper3(x, y, z, far, nextDim, k, heap, heapDists, count);
+    }
+    return count;
+  }
+
+  /** Gets all points within a given radius of a given point.
+   * @param origin The coordinates from which to find points within radius.
+   * If not the same number of dimensions as the tree, throws
+   * IllegalArgumentException.
+   * @param radius The euclidian radius within which to give results. If
+   * less than 0, throws IllegalArgumentException.
+   * @param idsOut Buffer the ids of the points found are written to.
+   * @param distsOut Buffer the euclidian distance of each point in idsOut
+   * is written to. Must be the same length as idsOut.
+   * @return The number of points within radius. If that is no more than
+   * the buffers' length, they all were written, sorted by distance.
+   * Otherwise only the first buffer-length points found were written, in no
+   * particular order, and the caller can retry with larger buffers.
+   */
+  public int findWithinRadius(
+      double[] origin, double radius, int[] idsOut, double[] distsOut) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("Radius must be 0 or greater");
+    } else if (idsOut.length != distsOut.length) {
+      throw new IllegalArgumentException("Buffers must be the same length");
+    }
+    checkOrigin(origin);
+
+    double radiusSquared = radius * radius;
+    int count = 0;
+    if (scan) {
+      for (int i = 0; i < size; i++) {
+        double dist = squaredDist(origin, i);
+        if (dist < radiusSquared) {
+          if (count < idsOut.length) {
+            idsOut[count] = ids[i];
+            distsOut[count] = dist;
+          }
+          count++;
+        }
+      }
+    } else if (numDims == 2) {
+      count = fwrHelper2(origin[0], origin[1], radiusSquared, root, true,
+          idsOut, distsOut, 0);
+    } else if (numDims == 3) {
+      count = fwrHelper3(origin[0], origin[1], origin[2], radiusSquared,
+          root, 0, idsOut, distsOut, 0);
+    } else {
+      count = fwrHelper(origin, radiusSquared, root, 0, idsOut, distsOut, 0);
+    }
+    int written = Math.min(count, idsOut.length);
+    if (count <= idsOut.length) {
+      DistanceHeap.sortByDistance(idsOut, distsOut, written);
+    }
+    for (int i = 0; i < written; i++) {
+      distsOut[i] = Math.sqrt(distsOut[i]);
+    }
+    return count;
+  }
+
+  private int fwrHelper(double[] origin, double radiusSquared, int curr,
+      int depth, int[] idsOut, double[] distsOut, int count) {
+    if (curr < 0) {
+      return count;
+    }
+
+    double dist = squaredDist(origin, curr);
+    if (dist < radiusSquared) {
+      if (count < idsOut.length) {
+        idsOut[count] = ids[curr];
+        distsOut[count] = dist;
+      }
+      count++;
+    }
+
+    int dim = depth % numDims;
+    double diff = origin[dim] - coords[curr * numDims + dim];
+    if (diff < 0 || diff * diff < radiusSquared) {
+      count = fwrHelper(origin, radiusSquared, children[2 * curr], depth + 1,
+          idsOut, distsOut, count);
+    }
+    if (diff >= 0 || diff * diff < radiusSquared) {
+      count = fwrHelper(origin, radiusSquared, children[2 * curr + 1],
+          depth + 1, idsOut, distsOut, count);
+    }
+    return count;
+  }
+
+  // fwrHelper for 2 dimensions, splitting on x if splitX and on y if not.
+  private int fwrHelper2(double x, double y, double radiusSquared, int curr,
+      boolean splitX, int[] idsOut, double[] distsOut, int count) {
+    if (curr < 0) {
+      return count;
+    }
+
+    double dx = x - xs[curr];
+    double dy = y - ys[curr];
+    double dist = dx * dx + dy * dy;
+    if (dist < radiusSquared) {
+      if (count < idsOut.length) {
+        idsOut[count] = ids[curr];
+        distsOut[count] = dist;
+      }
+      count++;
+    }
+
+    double diff = splitX ? dx : dy;
+    if (diff < 0 || diff * diff < radiusSquared) {
+      count = fwrHelper2(x, y, radiusSquared, children[2 * curr], !splitX,
+          idsOut, distsOut, count);
+    }
+    if (diff >= 0 || diff * diff < radiusSquared) {
+      count = fwrHelper2(x, y, radiusSquared, children[2 * curr + 1],
+          !splitX, idsOut, distsOut, count);
+    }
+    return count;
+  }
+
+  // fwrHelper for 3 dimensions, splitting on dim.
+  private int fwrHelper3(double x, double y, double z, double radiusSquared,
+      int curr, int dim, int[] idsOut, double[] distsOut, int count) {
+    if (curr < 0) {
+      return count;
+    }
+
+    double dx = x - xs[curr];
+    double dy = y - ys[curr];
+    double dz = z - zs[curr];
+    double dist = dx * dx + dy * dy + dz * dz;
+    if (dist < radiusSquared) {
+      if (count < idsOut.length) {
+        idsOut[count] = ids[curr];
+        distsOut[count] = dist;
+      }
+      count++;
+    }
+
+    double diff = dim == 0 ? dx : dim == 1 ? dy : dz;
+    int nextDim = dim == 2 ? 0 : dim + 1;
+    if (diff < 0 || diff * diff < radiusSquared) {
+      count = fwrHelper3(x, y, z, radiusSquared, children[2 * curr],
+          nextDim, idsOut, distsOut, count);
+    }
+    if (diff >= 0 || diff * diff < radiusSquared) {
+      count = fwrHelper3(x, y, z, radiusSquared, children[2 * curr + 1],
+          nextDim, idsOut, distsOut, count);
+    }
+    return count;
+  }
+
+  private double squaredDist(double[] origin, int pos) {
+    if (numDims == 2) {
+      return squaredDist2(origin[0], origin[1], pos);
+    } else if (numDims == 3) {
+      return squaredDist3(origin[0], origin[1], origin[2], pos);
+    }
+    return DistanceKernels.squaredDistance(
+        origin, 0, coords, pos * numDims, numDims);
+  }
+
+  private double squaredDist2(double x, double y, int pos) {
+    double dx = x - xs[pos];
+    double dy = y - ys[pos];
+    return dx * dx + dy * dy;
+  }
+
+  private double squaredDist3(double x, double y, double z, int pos) {
+    double dx = x - xs[pos];
+    double dy = y - ys[pos];
+    double dz = z - zs[pos];
+    return dx * dx + dy * dy + dz * dz;
+  }
+}
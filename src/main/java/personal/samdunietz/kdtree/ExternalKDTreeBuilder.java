@@ -0,0 +1,367 @@
+package personal.samdunietz.kdtree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Builds a tree file for DiskKDTree from points streamed from disk, for
+ * data sets too big to build a KDTree from on the heap.
+ *
+ * While a set of points is too big for the memory budget, a sample of
+ * them is taken and its median on the current dimension, an actual point,
+ * becomes the next node. One pass then splits the rest into a file of
+ * points on each side of it, and each file is built the same way. Once a
+ * set fits in the budget it is read in and built like DoubleKDTree builds.
+ * Nodes are written in preorder as they are made, so the tree file is
+ * written in one sequential pass too.
+ *
+ * Binary input is a sequence of records, each a long id followed by the
+ * point's coordinates as doubles, big endian, as DataOutputStream writes
+ * them. CSV input has one point per line: its id, then its coordinates,
+ * separated by commas. Blank lines are skipped.
+ * @author samdunietz
+ *
+ */
+public final class ExternalKDTreeBuilder {
+
+  private static final int BUFFER_BYTES = 1 << 16;
+  private static final int MAX_SAMPLE = 1 << 16;
+
+  private final int numDims;
+  private final int recordBytes;
+  private final long memoryBudgetBytes;
+  private final Path tempDir;
+  private final Random random = new Random(0);
+
+  /** Constructs an ExternalKDTreeBuilder.
+   * @param numDims The number of dimensions of each point. If below 1,
+   * throws IllegalArgumentException.
+   * @param memoryBudgetBytes About how much heap building may use for
+   * points, apart from fixed size buffers. If it can't hold at least 64
+   * points, throws IllegalArgumentException.
+   * @param tempDir Where to put the files holding partitioned points while
+   * building. They are deleted once used, and at most about twice the input
+   * size is on disk at once.
+   */
+  public ExternalKDTreeBuilder(
+      int numDims, long memoryBudgetBytes, Path tempDir) {
+    if (numDims < 1) {
+      throw new IllegalArgumentException("Datum cannot have 0 dimensions");
+    } else if (tempDir == null) {
+      throw new IllegalArgumentException("tempDir cannot be null");
+    }
+
+    this.numDims = numDims;
+    recordBytes = 8 * (numDims + 1);
+    if (memoryBudgetBytes / inMemoryBytes() < 64) {
+      throw new IllegalArgumentException(
+          "memoryBudgetBytes must fit at least 64 points");
+    }
+    this.memoryBudgetBytes = memoryBudgetBytes;
+    this.tempDir = tempDir;
+  }
+
+  // Heap used per point building in memory: coordinates, id and index.
+  private long inMemoryBytes() {
+    return recordBytes + 4;
+  }
+
+  /** Builds a tree file from binary input.
+   * @param input The binary records. If its length isn't a whole number of
+   * records, or a coordinate is NaN or infinite, throws
+   * IllegalArgumentException. It isn't changed.
+   * @param output Where to write the tree file.
+   * @return The number of points in the tree.
+   * @throws IOException If reading or writing fails.
+   */
+  public long buildFromBinary(Path input, Path output) throws IOException {
+    long length = Files.size(input);
+    if (length % recordBytes != 0) {
+      throw new IllegalArgumentException(
+          "All datum must have same number of dimensions");
+    }
+
+    long count = length / recordBytes;
+    try (DataOutputStream out = openOutput(output)) {
+      writeHeader(out, count);
+      build(input, count, 0, false, out);
+    }
+    return count;
+  }
+
+  /** Builds a tree file from CSV input.
+   * @param input The CSV lines. If a line doesn't have an id and numDims
+   * finite coordinates, throws IllegalArgumentException.
+   * @param output Where to write the tree file.
+   * @return The number of points in the tree.
+   * @throws IOException If reading or writing fails.
+   */
+  public long buildFromCsv(Path input, Path output) throws IOException {
+    Path records = Files.createTempFile(tempDir, "kdtree-part", ".bin");
+    try {
+      long count = 0;
+      try (BufferedReader in = Files.newBufferedReader(
+          input, StandardCharsets.UTF_8);
+          DataOutputStream out = openOutput(records)) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (!line.trim().isEmpty()) {
+            writeCsvRecord(out, line);
+            count++;
+          }
+        }
+      }
+
+      try (DataOutputStream out = openOutput(output)) {
+        writeHeader(out, count);
+        build(records, count, 0, true, out);
+      }
+      return count;
+    } finally {
+      Files.deleteIfExists(records);
+    }
+  }
+
+  private void writeCsvRecord(DataOutputStream out, String line)
+      throws IOException {
+    String[] fields = line.split(",");
+    if (fields.length != numDims + 1) {
+      throw new IllegalArgumentException(
+          "All datum must have same number of dimensions");
+    }
+
+    try {
+      out.writeLong(Long.parseLong(fields[0].trim()));
+      for (int i = 1; i <= numDims; i++) {
+        out.writeDouble(checkFinite(Double.parseDouble(fields[i].trim())));
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Bad CSV line: " + line, e);
+    }
+  }
+
+  private void writeHeader(DataOutputStream out, long count)
+      throws IOException {
+    out.writeInt(DiskKDTree.MAGIC);
+    out.writeInt(numDims);
+    out.writeLong(count);
+  }
+
+  private DataInputStream openInput(Path path) throws IOException {
+    return new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(path), BUFFER_BYTES));
+  }
+
+  private DataOutputStream openOutput(Path path) throws IOException {
+    return new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(path), BUFFER_BYTES));
+  }
+
+  // Writes the subtree of the count records in part, whose root is at
+  // depth. Deletes part once read if it is temporary.
+  private void build(Path part, long count, int depth, boolean temporary,
+      DataOutputStream out) throws IOException {
+    if (count == 0) {
+      if (temporary) {
+        Files.delete(part);
+      }
+    } else if (count <= memoryBudgetBytes / inMemoryBytes()
+        && count <= Integer.MAX_VALUE / numDims) {
+      buildInMemory(part, (int) count, depth, temporary, out);
+    } else {
+      buildExternal(part, count, depth, temporary, out);
+    }
+  }
+
+  private void buildInMemory(Path part, int count, int depth,
+      boolean temporary, DataOutputStream out) throws IOException {
+    double[] coords = new double[count * numDims];
+    long[] ids = new long[count];
+    try (DataInputStream in = openInput(part)) {
+      for (int i = 0; i < count; i++) {
+        ids[i] = in.readLong();
+        for (int dim = 0; dim < numDims; dim++) {
+          coords[i * numDims + dim] = checkFinite(in.readDouble());
+        }
+      }
+    }
+    if (temporary) {
+      Files.delete(part);
+    }
+
+    int[] perm = new int[count];
+    for (int i = 0; i < count; i++) {
+      perm[i] = i;
+    }
+    writeSubtree(coords, ids, perm, 0, count, depth, out);
+  }
+
+  // Writes perm[lo, hi) in preorder, splitting at the median the same way
+  // DoubleKDTree does.
+  private void writeSubtree(double[] coords, long[] ids, int[] perm,
+      int lo, int hi, int depth, DataOutputStream out) throws IOException {
+    if (lo >= hi) {
+      return;
+    }
+
+    int mid = (lo + hi) >>> 1;
+    select(coords, perm, lo, hi - 1, mid, depth % numDims);
+    writeNode(out, ids[perm[mid]], coords, perm[mid] * numDims, mid - lo);
+    writeSubtree(coords, ids, perm, lo, mid, depth + 1, out);
+    writeSubtree(coords, ids, perm, mid + 1, hi, depth + 1, out);
+  }
+
+  // Quickselect on perm[lo, hi] so that perm[nth] holds the point that
+  // would be there if sorted on dim.
+  private void select(
+      double[] src, int[] perm, int lo, int hi, int nth, int dim) {
+    while (hi > lo) {
+      double pivot = src[perm[(lo + hi) >>> 1] * numDims + dim];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (src[perm[i] * numDims + dim] < pivot) {
+          i++;
+        }
+        while (src[perm[j] * numDims + dim] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int tmp = perm[i];
+          perm[i] = perm[j];
+          perm[j] = tmp;
+          i++;
+          j--;
+        }
+      }
+      if (nth <= j) {
+        hi = j;
+      } else if (nth >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void writeNode(DataOutputStream out, long id, double[] coords,
+      int offset, long leftSize) throws IOException {
+    out.writeLong(id);
+    for (int dim = 0; dim < numDims; dim++) {
+      out.writeDouble(coords[offset + dim]);
+    }
+    out.writeLong(leftSize);
+  }
+
+  private void buildExternal(Path part, long count, int depth,
+      boolean temporary, DataOutputStream out) throws IOException {
+    int dim = depth % numDims;
+
+    // Reservoir sample of each record's component on dim and its position
+    // in part, sized to stay well inside the budget.
+    int sampleSize = (int) Math.min(count,
+        Math.min(MAX_SAMPLE, memoryBudgetBytes / 16 / 2));
+    double[] sampleValues = new double[sampleSize];
+    long[] samplePositions = new long[sampleSize];
+    double[] record = new double[numDims];
+    try (DataInputStream in = openInput(part)) {
+      for (long i = 0; i < count; i++) {
+        in.readLong();
+        readCoords(in, record);
+        long slot = i < sampleSize ? i : (long) (random.nextDouble() * (i + 1));
+        if (slot < sampleSize) {
+          sampleValues[(int) slot] = record[dim];
+          samplePositions[(int) slot] = i;
+        }
+      }
+    }
+
+    double[] sorted = sampleValues.clone();
+    Arrays.sort(sorted);
+    double splitValue = sorted[sampleSize / 2];
+    long splitPosition = -1;
+    for (int i = 0; i < sampleSize && splitPosition < 0; i++) {
+      if (Double.compare(sampleValues[i], splitValue) == 0) {
+        splitPosition = samplePositions[i];
+      }
+    }
+
+    // Points tied with the split value alternate sides, so many duplicates
+    // still split evenly. Searches stay correct, since every point on the
+    // left is still at or below the split value and every point on the
+    // right at or above it.
+    Path left = Files.createTempFile(tempDir, "kdtree-part", ".bin");
+    Path right = Files.createTempFile(tempDir, "kdtree-part", ".bin");
+    try {
+      long leftCount = 0;
+      long splitId = 0;
+      double[] splitCoords = new double[numDims];
+      try (DataInputStream in = openInput(part);
+          DataOutputStream leftOut = openOutput(left);
+          DataOutputStream rightOut = openOutput(right)) {
+        boolean tieGoesLeft = true;
+        for (long i = 0; i < count; i++) {
+          long id = in.readLong();
+          readCoords(in, record);
+          if (i == splitPosition) {
+            splitId = id;
+            System.arraycopy(record, 0, splitCoords, 0, numDims);
+            continue;
+          }
+
+          boolean goesLeft = record[dim] < splitValue;
+          if (record[dim] == splitValue) {
+            goesLeft = tieGoesLeft;
+            tieGoesLeft = !tieGoesLeft;
+          }
+          writeRecord(goesLeft ? leftOut : rightOut, id, record);
+          if (goesLeft) {
+            leftCount++;
+          }
+        }
+      }
+      if (temporary) {
+        Files.delete(part);
+      }
+
+      writeNode(out, splitId, splitCoords, 0, leftCount);
+      build(left, leftCount, depth + 1, true, out);
+      build(right, count - 1 - leftCount, depth + 1, true, out);
+    } finally {
+      Files.deleteIfExists(left);
+      Files.deleteIfExists(right);
+    }
+  }
+
+  private void readCoords(DataInputStream in, double[] record)
+      throws IOException {
+    for (int dim = 0; dim < numDims; dim++) {
+      record[dim] = checkFinite(in.readDouble());
+    }
+  }
+
+  // Coordinates are all read through here, so NaN and infinity, which
+  // would break the ordering splits depend on, never get into a tree.
+  private static double checkFinite(double coord) {
+    if (!Double.isFinite(coord)) {
+      throw new IllegalArgumentException("Coordinates must be finite");
+    }
+    return coord;
+  }
+
+  private void writeRecord(DataOutputStream out, long id, double[] record)
+      throws IOException {
+    out.writeLong(id);
+    for (int dim = 0; dim < numDims; dim++) {
+      out.writeDouble(record[dim]);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package personal.samdunietz.kdtree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/** Index of points on the Earth's surface, given by latitude and
+ * longitude.
+ *
+ * Treating latitude and longitude as 2D coordinates gets distances wrong
+ * away from the equator and across the antimeridian. Instead, each point
+ * is stored as a 3D unit vector, and queries use the straight line (chord)
+ * distance between vectors, which orders points exactly as great circle
+ * distance does. Radii are converted from great circle distance to chord
+ * distance exactly, so results are correct anywhere on the globe while
+ * the tree still only does cheap euclidian math.
+ * @author samdunietz
+ *
+ * @param <Q> The type of the elements in the index.
+ */
+public final class GeoIndex<Q> {
+
+  private final KDTree<GeoPoint<Q>> tree;
+
+  /** Constructs a GeoIndex.
+   * @param data The elements to index.
+   * @param latOf Gets an element's latitude, in degrees. Must be between
+   * -90 and 90, or throws IllegalArgumentException.
+   * @param lngOf Gets an element's longitude, in degrees.
+   */
+  public GeoIndex(Collection<Q> data, ToDoubleFunction<? super Q> latOf,
+      ToDoubleFunction<? super Q> lngOf) {
+    if (data == null) {
+      throw new IllegalArgumentException("data cannot be null");
+    }
+
+    List<GeoPoint<Q>> points = new ArrayList<>(data.size());
+    for (Q item : data) {
+      points.add(new GeoPoint<>(
+          item, latOf.applyAsDouble(item), lngOf.applyAsDouble(item)));
+    }
+    tree = new KDTree<>(points);
+  }
+
+  /** Gets the number of elements in the index.
+   * @return The number of elements in the index.
+   */
+  public int size() {
+    return tree.size();
+  }
+
+  /** Gets the element nearest to a given point.
+   * @param lat The point's latitude, in degrees.
+   * @param lng The point's longitude, in degrees.
+   * @return The element with the shortest great circle distance to the
+   * point. If the index is empty, throws NoSuchElementException.
+   */
+  public Q nearestNeighbor(double lat, double lng) {
+    return tree.nearestNeighbor(new GeoPoint<>(null, lat, lng)).item;
+  }
+
+  /** Gets the k elements nearest to a given point.
+   * @param lat The point's latitude, in degrees.
+   * @param lng The point's longitude, in degrees.
+   * @param k The number of nearest neighbors to find.
+   * @return The k elements with the shortest great circle distance to the
+   * point, nearest first.
+   */
+  public List<Q> kNearestNeighbor(double lat, double lng, int k) {
+    return items(tree.kNearestNeighbor(new GeoPoint<>(null, lat, lng), k));
+  }
+
+  /** Gets all elements within a given great circle distance of a point.
+   * @param lat The point's latitude, in degrees.
+   * @param lng The point's longitude, in degrees.
+   * @param distance The distance within which to give results. If less
+   * than 0, throws IllegalArgumentException.
+   * @param unit The unit distance is in.
+   * @return All elements within distance of the point, nearest first.
+   */
+  public List<Q> findWithinDistance(
+      double lat, double lng, double distance, GeoUnit unit) {
+    if (distance < 0) {
+      throw new IllegalArgumentException("Distance must be 0 or greater");
+    }
+
+    // A great circle distance covering angle theta on the unit sphere
+    // spans a chord of length 2 sin(theta / 2). Past halfway around the
+    // Earth, everything is within distance.
+    double theta = distance / unit.getEarthRadius();
+    double chord = theta >= Math.PI
+        ? Double.POSITIVE_INFINITY
+        : 2 * Math.sin(theta / 2);
+    return items(tree.findWithinRadius(new GeoPoint<>(null, lat, lng), chord));
+  }
+
+  /** Gets the great circle distance between two points.
+   * @param lat1 The first point's latitude, in degrees.
+   * @param lng1 The first point's longitude, in degrees.
+   * @param lat2 The second point's latitude, in degrees.
+   * @param lng2 The second point's longitude, in degrees.
+   * @param unit The unit to give the distance in.
+   * @return The great circle distance between the two points.
+   */
+  public static double distance(double lat1, double lng1,
+      double lat2, double lng2, GeoUnit unit) {
+    double chord = new GeoPoint<>(null, lat1, lng1)
+        .euclidianDist(new GeoPoint<>(null, lat2, lng2));
+    return 2 * Math.asin(Math.min(1, chord / 2)) * unit.getEarthRadius();
+  }
+
+  private List<Q> items(List<GeoPoint<Q>> points) {
+    List<Q> items = new ArrayList<>(points.size());
+    for (GeoPoint<Q> point : points) {
+      items.add(point.item);
+    }
+    return items;
+  }
+
+  /** An element and its position as a 3D unit vector.
+   * @author samdunietz
+   *
+   * @param <T> The type of the element.
+   */
+  private static final class GeoPoint<T> implements KDData {
+
+    private final T item;
+    private final double[] loc;
+
+    private GeoPoint(T item, double lat, double lng) {
+      if (lat < -90 || lat > 90 || Double.isNaN(lat)) {
+        throw new IllegalArgumentException(
+            "Latitude must be between -90 and 90");
+      }
+
+      this.item = item;
+      double latRadians = Math.toRadians(lat);
+      double lngRadians = Math.toRadians(lng);
+      double cosLat = Math.cos(latRadians);
+      loc = new double[]{
+          cosLat * Math.cos(lngRadians),
+          cosLat * Math.sin(lngRadians),
+          Math.sin(latRadians)};
+    }
+
+    @Override
+    public double[] getLocData() {
+      return loc;
+    }
+
+    @Override
+    public int getDims() {
+      return 3;
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package personal.samdunietz.kdtree;
+
+/** Units of distance along the Earth's surface, for GeoIndex.
+ * @author samdunietz
+ *
+ */
+public enum GeoUnit {
+
+  /** Statute miles. */
+  MILES(3958.8),
+
+  /** Kilometers. */
+  KILOMETERS(6371.0);
+
+  private final double earthRadius;
+
+  GeoUnit(double earthRadius) {
+    this.earthRadius = earthRadius;
+  }
+
+  /** Gets the Earth's mean radius in this unit.
+   * @return The Earth's mean radius.
+   */
+  public double getEarthRadius() {
+    return earthRadius;
+  }
+}
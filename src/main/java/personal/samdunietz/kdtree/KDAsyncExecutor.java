@@ -0,0 +1,301 @@
+package personal.samdunietz.kdtree;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Runs nearest neighbor queries on a KDTree asynchronously, gathering
+ * queries that arrive close together into batches.
+ *
+ * A dispatcher thread takes queries off a queue until it has a full batch
+ * or the oldest query has waited long enough, then hands the batch to one
+ * of a fixed number of worker threads, which runs it with the tree's batch
+ * query path. Only as many batches as there are workers are ever in
+ * flight; while they are busy, new queries build up into larger batches
+ * rather than into more work for the workers.
+ *
+ * The queue of waiting queries is unbounded, so there is no backpressure:
+ * submitting queries faster than the workers run them grows the queue
+ * without limit. Callers that can outpace the tree should bound the
+ * number of futures they have outstanding, or watch getQueueDepth.
+ *
+ * This class is thread safe. Closing it runs every query already
+ * submitted before shutting down.
+ * @author samdunietz
+ *
+ * @param <Q> The type of KDData in the tree.
+ */
+public final class KDAsyncExecutor<Q extends KDData> implements AutoCloseable {
+
+  private final KDTree<Q> tree;
+  private final int maxBatchSize;
+  private final long maxDelayNanos;
+
+  private final BlockingQueue<Request<Q>> pending = new LinkedBlockingQueue<>();
+  // Queued by close after every real request, to wake the dispatcher and
+  // tell it to stop.
+  private final Request<Q> shutdown = new Request<>(null, 0);
+  private final Semaphore workerSlots;
+  private final ExecutorService workers;
+  private final Thread dispatcher;
+
+  // Guarded by this, so nothing is queued after shutdown.
+  private boolean closed;
+
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong batchedQueries = new AtomicLong();
+  private final AtomicLong largestBatch = new AtomicLong();
+
+  /** Constructs a KDAsyncExecutor and starts its threads.
+   * @param tree The tree to query.
+   * @param maxBatchSize The most queries to run in one batch. If below 1,
+   * throws IllegalArgumentException.
+   * @param maxDelayMillis The longest to wait for more queries to fill a
+   * batch once one query has arrived. If 0, a batch is whatever has queued
+   * up when a worker is free. If below 0, throws IllegalArgumentException.
+   * @param numThreads The number of worker threads running batches. If
+   * below 1, throws IllegalArgumentException.
+   */
+  public KDAsyncExecutor(KDTree<Q> tree, int maxBatchSize,
+      long maxDelayMillis, int numThreads) {
+    if (tree == null) {
+      throw new IllegalArgumentException("tree cannot be null");
+    } else if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("maxBatchSize must be at least 1");
+    } else if (maxDelayMillis < 0) {
+      throw new IllegalArgumentException("maxDelayMillis must be 0 or greater");
+    } else if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be at least 1");
+    }
+
+    this.tree = tree;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    workerSlots = new Semaphore(numThreads);
+    workers = Executors.newFixedThreadPool(numThreads, runnable -> {
+      Thread thread = new Thread(runnable, "kdtree-batch-worker");
+      thread.setDaemon(true);
+      return thread;
+    });
+    dispatcher = new Thread(this::dispatch, "kdtree-batch-dispatcher");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  /** Gets the tree queries are run on.
+   * @return The tree queries are run on.
+   */
+  public KDTree<Q> getTree() {
+    return tree;
+  }
+
+  /** Queues a k nearest neighbor query.
+   * @param origin The datum from which to find the nearest neighbors. Must
+   * have the same number of dimensions as the tree, or throws
+   * IllegalArgumentException.
+   * @param k The number of nearest neighbors to find. If below 1, throws
+   * IllegalArgumentException.
+   * @return A future completed with the same list kNearestNeighbor would
+   * give, or completed exceptionally if the query fails. If the executor is
+   * closed, throws IllegalStateException. The query is queued without
+   * waiting, however many are already queued.
+   */
+  public CompletableFuture<List<Q>> kNearestAsync(KDData origin, int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException(
+          "ERROR: k must be an integer greater than zero.");
+    } else if (!tree.isEmpty() && origin.getDims() != tree.getNumDims()) {
+      throw new IllegalArgumentException(
+          "Given datum doesn't have same number of dimensions as KDTree");
+    }
+
+    Request<Q> request = new Request<>(origin, k);
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("Executor is closed");
+      }
+      pending.add(request);
+    }
+    return request.future;
+  }
+
+  private void dispatch() {
+    List<Request<Q>> batch = new ArrayList<>(maxBatchSize);
+    boolean stopping = false;
+    while (!stopping) {
+      try {
+        workerSlots.acquire();
+        Request<Q> first = pending.take();
+        if (first == shutdown) {
+          return;
+        }
+
+        batch.add(first);
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (batch.size() < maxBatchSize) {
+          long remaining = deadline - System.nanoTime();
+          Request<Q> next = remaining > 0
+              ? pending.poll(remaining, TimeUnit.NANOSECONDS)
+              : pending.poll();
+          if (next == null) {
+            break;
+          } else if (next == shutdown) {
+            // Nothing was queued after it, so this batch is the last.
+            stopping = true;
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        abandon(batch);
+        return;
+      }
+
+      List<Request<Q>> toRun = batch;
+      batch = new ArrayList<>(maxBatchSize);
+      workers.execute(() -> {
+        try {
+          run(toRun);
+        } finally {
+          workerSlots.release();
+        }
+      });
+    }
+  }
+
+  // Fails the futures of batch and of everything still queued once the
+  // dispatcher can't go on, and stops accepting queries, so nobody waits
+  // on a future that will never complete.
+  private void abandon(List<Request<Q>> batch) {
+    synchronized (this) {
+      closed = true;
+    }
+    List<Request<Q>> abandoned = new ArrayList<>(batch);
+    pending.drainTo(abandoned);
+    for (Request<Q> request : abandoned) {
+      if (request != shutdown) {
+        request.future.completeExceptionally(
+            new CancellationException("Executor was interrupted"));
+      }
+    }
+  }
+
+  private void run(List<Request<Q>> batch) {
+    batches.incrementAndGet();
+    batchedQueries.addAndGet(batch.size());
+    largestBatch.accumulateAndGet(batch.size(), Math::max);
+
+    Map<Integer, List<Request<Q>>> byK = new LinkedHashMap<>();
+    for (Request<Q> request : batch) {
+      byK.computeIfAbsent(request.k, k -> new ArrayList<>()).add(request);
+    }
+    for (Map.Entry<Integer, List<Request<Q>>> group : byK.entrySet()) {
+      List<Request<Q>> requests = group.getValue();
+      List<KDData> origins = new ArrayList<>(requests.size());
+      for (Request<Q> request : requests) {
+        origins.add(request.origin);
+      }
+
+      try {
+        List<List<Q>> results =
+            tree.kNearestNeighbors(origins, group.getKey(), QueryOrder.HILBERT);
+        for (int i = 0; i < requests.size(); i++) {
+          requests.get(i).future.complete(results.get(i));
+        }
+      } catch (Throwable e) {
+        // Errors too, or their futures would never complete.
+        for (Request<Q> request : requests) {
+          request.future.completeExceptionally(e);
+        }
+      }
+    }
+  }
+
+  /** Gets the number of queries waiting to be put in a batch.
+   * @return The number of queries waiting to be put in a batch.
+   */
+  public int getQueueDepth() {
+    return pending.size();
+  }
+
+  /** Gets the number of batches run so far.
+   * @return The number of batches started.
+   */
+  public long getBatchCount() {
+    return batches.get();
+  }
+
+  /** Gets the number of queries run in batches so far.
+   * @return The total size of all batches started.
+   */
+  public long getBatchedQueryCount() {
+    return batchedQueries.get();
+  }
+
+  /** Gets the average number of queries per batch.
+   * @return The mean batch size, or 0 if no batch has run.
+   */
+  public double getMeanBatchSize() {
+    long count = batches.get();
+    return count == 0 ? 0 : (double) batchedQueries.get() / count;
+  }
+
+  /** Gets the size of the largest batch so far.
+   * @return The size of the largest batch started, or 0 if none has.
+   */
+  public long getLargestBatchSize() {
+    return largestBatch.get();
+  }
+
+  /** Stops accepting queries, waits for every query already submitted to
+   * finish, and stops the executor's threads. If the dispatcher thread was
+   * interrupted, queries it hadn't handed to a worker were already failed
+   * with CancellationException.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (!closed) {
+        closed = true;
+        pending.add(shutdown);
+      }
+    }
+
+    try {
+      dispatcher.join();
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      workers.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** A queued query and the future for its result.
+   * @author samdunietz
+   *
+   * @param <T> The type of KDData in the tree.
+   */
+  private static final class Request<T extends KDData> {
+
+    private final KDData origin;
+    private final int k;
+    private final CompletableFuture<List<T>> future = new CompletableFuture<>();
+
+    private Request(KDData origin, int k) {
+      this.origin = origin;
+      this.k = k;
+    }
+  }
+}
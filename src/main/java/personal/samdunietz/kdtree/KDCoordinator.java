@@ -0,0 +1,182 @@
+package personal.samdunietz.kdtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.google.common.collect.MinMaxPriorityQueue;
+
+/** Runs queries on a distributed index, whose partitions each own a range
+ * of space and are reached through a KDTransport.
+ *
+ * Queries are only sent to partitions whose range comes within the search
+ * bound. A kNN query asks the nearest partition first, then asks the rest
+ * in rounds, nearest first, with several partitions per round asked
+ * concurrently. Results are merged after every round, and the kth nearest
+ * distance so far becomes the radius for the next round, so partitions
+ * farther than that are never asked at all.
+ *
+ * Partition ranges are fetched once, when the coordinator is made. This
+ * class is thread safe if its transport is.
+ * @author samdunietz
+ *
+ * @param <Q> The type of KDData in the index.
+ */
+public final class KDCoordinator<Q extends KDData> {
+
+  private final KDTransport<Q> transport;
+  private final int fanout;
+  private final double[][] mins;
+  private final double[][] maxes;
+
+  /** Constructs a KDCoordinator.
+   * @param transport Reaches the partitions. All must have the same number
+   * of dimensions, or throws IllegalArgumentException.
+   * @param fanout The most partitions asked at once in each round of a kNN
+   * query after the first. Higher gives lower latency, but may ask
+   * partitions a tighter bound would have skipped. If below 1, throws
+   * IllegalArgumentException.
+   */
+  public KDCoordinator(KDTransport<Q> transport, int fanout) {
+    if (transport == null) {
+      throw new IllegalArgumentException("transport cannot be null");
+    } else if (fanout < 1) {
+      throw new IllegalArgumentException("fanout must be at least 1");
+    }
+
+    this.transport = transport;
+    this.fanout = fanout;
+    int numPartitions = transport.numPartitions();
+    mins = new double[numPartitions][];
+    maxes = new double[numPartitions][];
+    for (int i = 0; i < numPartitions; i++) {
+      mins[i] = transport.getMin(i);
+      maxes[i] = transport.getMax(i);
+      if (mins[i].length != mins[0].length
+          || maxes[i].length != mins[0].length) {
+        throw new IllegalArgumentException(
+            "All datum must have same number of dimensions");
+      }
+    }
+  }
+
+  /** Gets the number of partitions.
+   * @return The number of partitions.
+   */
+  public int getNumPartitions() {
+    return mins.length;
+  }
+
+  /** Gets the k nearest neighbors to a given point across all partitions.
+   * @param <R> The type of the origin.
+   * @param origin The datum from which to find the nearest neighbors.
+   * Must have the same number of dimensions as the partitions, or throws
+   * IllegalArgumentException.
+   * @param k The number of nearest neighbors to find. If below 1, throws
+   * IllegalArgumentException.
+   * @return The k nearest datum to origin, nearest first. If there are no
+   * partitions, returns an empty list. If a partition's request fails,
+   * throws CompletionException with the failure as its cause.
+   */
+  public <R extends KDData> List<Q> kNearestNeighbor(R origin, int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException(
+          "ERROR: k must be an integer greater than zero.");
+    }
+    double[] boxDistances = boxDistances(origin);
+
+    Integer[] byDistance = new Integer[mins.length];
+    for (int i = 0; i < byDistance.length; i++) {
+      byDistance[i] = i;
+    }
+    Arrays.sort(byDistance, Comparator.comparingDouble(i -> boxDistances[i]));
+
+    // Each result's distance is computed once, when it arrives, and kept
+    // with it for the bound and the final sort.
+    MinMaxPriorityQueue<KDTree.Neighbor<Q>> nearest =
+        MinMaxPriorityQueue.maximumSize(k).create();
+    int next = 0;
+    int roundSize = 1;
+    while (next < byDistance.length) {
+      double bound = nearest.size() < k
+          ? Double.POSITIVE_INFINITY
+          : nearest.peekLast().dist;
+
+      // Partitions are in order of distance, so once one is out of bound
+      // so are all the rest.
+      List<CompletableFuture<List<Q>>> round = new ArrayList<>();
+      while (next < byDistance.length && round.size() < roundSize
+          && boxDistances[byDistance[next]] < bound) {
+        round.add(transport.kNearestWithinRadius(
+            byDistance[next++], origin, k, bound));
+      }
+      if (round.isEmpty()) {
+        break;
+      }
+
+      for (CompletableFuture<List<Q>> results : round) {
+        for (Q item : results.join()) {
+          double dist = item.euclidianDist(origin);
+          if (nearest.size() < k || dist < nearest.peekLast().dist) {
+            nearest.add(new KDTree.Neighbor<>(item, dist));
+          }
+        }
+      }
+      roundSize = fanout;
+    }
+    return KDTree.sortedItems(new ArrayList<>(nearest));
+  }
+
+  /** Gets all elements within a given radius of a given point across all
+   * partitions. Every partition whose range comes within radius is asked
+   * at once.
+   * @param <R> The type of the origin.
+   * @param origin The datum from which to find data within radius.
+   * Must have the same number of dimensions as the partitions, or throws
+   * IllegalArgumentException.
+   * @param radius The euclidian radius within which to give results. If
+   * less than 0, throws IllegalArgumentException.
+   * @return All the data within radius of origin, nearest first. If a
+   * partition's request fails, throws CompletionException with the failure
+   * as its cause.
+   */
+  public <R extends KDData> List<Q> findWithinRadius(R origin, double radius) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("Radius must be 0 or greater");
+    }
+    double[] boxDistances = boxDistances(origin);
+
+    List<CompletableFuture<List<Q>>> requests = IntStream
+        .range(0, mins.length)
+        .filter(i -> boxDistances[i] < radius)
+        .mapToObj(i -> transport.findWithinRadius(i, origin, radius))
+        .collect(Collectors.toList());
+    List<KDTree.Neighbor<Q>> withinRadius = new ArrayList<>();
+    for (CompletableFuture<List<Q>> results : requests) {
+      for (Q item : results.join()) {
+        withinRadius.add(
+            new KDTree.Neighbor<>(item, item.euclidianDist(origin)));
+      }
+    }
+    return KDTree.sortedItems(withinRadius);
+  }
+
+  // Smallest possible distance from origin to anything in each partition.
+  private double[] boxDistances(KDData origin) {
+    if (mins.length > 0 && origin.getDims() != mins[0].length) {
+      throw new IllegalArgumentException(
+          "Given datum doesn't have same number of dimensions as KDTree");
+    }
+
+    double[] loc = origin.getLocData();
+    double[] distances = new double[mins.length];
+    for (int p = 0; p < mins.length; p++) {
+      distances[p] = DistanceKernels.boxDistance(mins[p], maxes[p], loc);
+    }
+    return distances;
+  }
+}
@@ -18,13 +18,8 @@ public interface KDData {
           "Two datum must have same number of dimensions");
     }
 
-    double distanceSquared = 0;
-    double[] otherLoc = other.getLocData();
-    double[] thisLoc = getLocData();
-    for (int i = 0; i < thisLoc.length; i++) {
-      distanceSquared += Math.pow(otherLoc[i] - thisLoc[i], 2);
-    }
-    return Math.sqrt(distanceSquared);
+    return Math.sqrt(DistanceKernels.squaredDistance(
+        getLocData(), other.getLocData()));
   }
 
   /** Gets a given component.
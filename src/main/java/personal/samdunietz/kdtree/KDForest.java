@@ -0,0 +1,248 @@
+package personal.samdunietz.kdtree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/** A set of KDTrees, each holding one spatial region of the data.
+ *
+ * Building a forest builds its shards in parallel, and queries are only
+ * sent to shards whose elements could be results, with those shards
+ * searched concurrently and their results merged by distance. A single
+ * shard can be rebuilt without touching the others.
+ *
+ * Like KDTree, a KDForest is unmodifiable; withShard gives a new forest.
+ * @author samdunietz
+ *
+ * @param <Q> The type of KDData in the forest.
+ */
+public final class KDForest<Q extends KDData> {
+
+  private final List<KDTree<Q>> shards;
+
+  /** Constructs a KDForest by splitting data into spatial regions of about
+   * the same number of elements.
+   * @param data All the data for the forest. All datum must have the same
+   * number of dimensions.
+   * @param numShards The number of regions to split data into. If below 1,
+   * throws IllegalArgumentException.
+   */
+  public KDForest(Collection<Q> data, int numShards) {
+    if (data == null) {
+      throw new IllegalArgumentException("data cannot be null");
+    } else if (numShards < 1) {
+      throw new IllegalArgumentException("numShards must be at least 1");
+    }
+
+    if (data.stream().mapToInt(KDData::getDims).distinct().count() > 1) {
+      throw new IllegalArgumentException(
+          "All datum must have same number of dimensions");
+    }
+
+    List<List<Q>> regions = new ArrayList<>();
+    partition(new ArrayList<>(data), numShards, regions);
+    shards = Collections.unmodifiableList(regions.parallelStream()
+        .map(KDTree<Q>::new)
+        .collect(Collectors.toList()));
+  }
+
+  private KDForest(List<KDTree<Q>> shards) {
+    this.shards = Collections.unmodifiableList(shards);
+  }
+
+  // Splits data into numShards regions by repeatedly cutting along the
+  // dimension it is most spread out in.
+  private void partition(List<Q> data, int numShards, List<List<Q>> regions) {
+    if (numShards == 1 || data.size() < 2) {
+      regions.add(data);
+      for (int i = 1; i < numShards; i++) {
+        regions.add(new ArrayList<>());
+      }
+      return;
+    }
+
+    int dim = widestDim(data);
+    data.sort(Comparator.comparingDouble(d -> d.getComponent(dim)));
+
+    int leftShards = numShards / 2;
+    int cut = (int) ((long) data.size() * leftShards / numShards);
+    partition(
+        new ArrayList<>(data.subList(0, cut)), leftShards, regions);
+    partition(new ArrayList<>(data.subList(cut, data.size())),
+        numShards - leftShards, regions);
+  }
+
+  private int widestDim(List<Q> data) {
+    int numDims = data.get(0).getDims();
+    int widest = 0;
+    double widestExtent = -1;
+    for (int dim = 0; dim < numDims; dim++) {
+      final int d = dim;
+      double min = data.stream().mapToDouble(q -> q.getComponent(d))
+          .min().getAsDouble();
+      double max = data.stream().mapToDouble(q -> q.getComponent(d))
+          .max().getAsDouble();
+      if (max - min > widestExtent) {
+        widest = dim;
+        widestExtent = max - min;
+      }
+    }
+    return widest;
+  }
+
+  /** Gets a new forest with one shard rebuilt from new data, sharing every
+   * other shard with this forest.
+   * @param index The shard to replace. If out of range, throws
+   * IndexOutOfBoundsException.
+   * @param shardData The data for the new shard. It need not lie in the
+   * region the old shard covered, though queries are fastest if it does.
+   * @return A forest with the shard at index replaced.
+   */
+  public KDForest<Q> withShard(int index, Collection<Q> shardData) {
+    KDTree<Q> shard = new KDTree<>(shardData);
+    if (!shard.isEmpty() && !isEmpty()
+        && shard.getNumDims() != getNumDims()) {
+      throw new IllegalArgumentException(
+          "All datum must have same number of dimensions");
+    }
+
+    List<KDTree<Q>> newShards = new ArrayList<>(shards);
+    newShards.set(index, shard);
+    return new KDForest<>(newShards);
+  }
+
+  /** Gets the number of shards in the forest.
+   * @return The number of shards, including empty ones.
+   */
+  public int getNumShards() {
+    return shards.size();
+  }
+
+  /** Gets one shard of the forest.
+   * @param index The shard to get. If out of range, throws
+   * IndexOutOfBoundsException.
+   * @return The tree backing the shard.
+   */
+  public KDTree<Q> getShard(int index) {
+    return shards.get(index);
+  }
+
+  /** Gets the number of dimensions of the data in the forest.
+   * If the forest is empty, throws NoSuchElementException.
+   * @return The number of dimension of the data in the forest.
+   */
+  public int getNumDims() {
+    return shards.stream()
+        .filter(shard -> !shard.isEmpty())
+        .findAny()
+        .orElse(shards.get(0))
+        .getNumDims();
+  }
+
+  /** Determines if the forest is empty.
+   * @return True if no shard has any elements, and false otherwise.
+   */
+  public boolean isEmpty() {
+    return shards.stream().allMatch(KDTree::isEmpty);
+  }
+
+  /** Gets the number of elements in the forest.
+   * @return The number of elements across all shards.
+   */
+  public int size() {
+    return shards.stream().mapToInt(KDTree::size).sum();
+  }
+
+  /** Gives an unordered list of all the elements in the forest.
+   * @return An unordered list of the all the elements in the forest.
+   */
+  public List<Q> toList() {
+    List<Q> list = new ArrayList<>();
+    for (KDTree<Q> shard : shards) {
+      list.addAll(shard.toList());
+    }
+    return list;
+  }
+
+  private void checkDims(KDData origin) {
+    if (!isEmpty() && origin.getDims() != getNumDims()) {
+      throw new IllegalArgumentException(
+          "Given datum doesn't have same number of dimensions as KDForest");
+    }
+  }
+
+  /** Gets the k nearest neighbors to a given point. The shard nearest
+   * origin is searched first, and only shards that could hold something
+   * closer than its kth nearest neighbor are searched after that.
+   * @param <R> The type of the origin.
+   * @param origin The datum from which to find the nearest neighbors.
+   * Must have the same number of dimensions as the forest, or throws
+   * IllegalArgumentException.
+   * @param k The number of nearest neighbors to find.
+   * @return The k nearest datum to origin in the forest, sorted by
+   * distance. If the forest is empty, returns an empty list.
+   */
+  public <R extends KDData> List<Q> kNearestNeighbor(R origin, int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException(
+          "ERROR: k must be an integer greater than zero.");
+    }
+
+    checkDims(origin);
+    double[] loc = origin.getLocData();
+    List<KDTree<Q>> byDistance = shards.stream()
+        .filter(shard -> !shard.isEmpty())
+        .sorted(Comparator.comparingDouble(shard -> shard.boxDistance(loc)))
+        .collect(Collectors.toList());
+    if (byDistance.isEmpty()) {
+      return new ArrayList<>();
+    }
+
+    List<KDTree.Neighbor<Q>> nearest = byDistance.get(0)
+        .kNearestWithDistances(origin, k, Double.POSITIVE_INFINITY);
+    double bound = nearest.size() < k
+        ? Double.POSITIVE_INFINITY
+        : nearest.get(k - 1).dist;
+
+    // Each shard's results come sorted with their distances, so merging
+    // them compares stored distances instead of computing them again.
+    List<KDTree.Neighbor<Q>> candidates = byDistance
+        .subList(1, byDistance.size())
+        .parallelStream()
+        .filter(shard -> shard.boxDistance(loc) < bound)
+        .flatMap(shard -> shard.kNearestWithDistances(origin, k, bound)
+            .stream())
+        .collect(Collectors.toList());
+    candidates.addAll(nearest);
+    return KDTree.sortedItems(candidates, k);
+  }
+
+  /** Gets all elements within a given radius of a given point. Only
+   * shards whose region comes within radius of origin are searched.
+   * @param <R> The type of the origin.
+   * @param origin The datum from which to find data within radius.
+   * Must have the same number of dimensions as the forest, or throws
+   * IllegalArgumentException.
+   * @param radius The euclidian radius within which to give results. If
+   * less than 0, throws IllegalArgumentException.
+   * @return All the data within radius of origin, sorted by distance. If
+   * the forest is empty, returns an empty list.
+   */
+  public <R extends KDData> List<Q> findWithinRadius(R origin, double radius) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("Radius must be 0 or greater");
+    }
+
+    checkDims(origin);
+    double[] loc = origin.getLocData();
+    List<KDTree.Neighbor<Q>> withinRadius = shards.parallelStream()
+        .filter(shard -> shard.boxDistance(loc) < radius)
+        .flatMap(shard -> shard.withinRadiusWithDistances(origin, radius)
+            .stream())
+        .collect(Collectors.toList());
+    return KDTree.sortedItems(withinRadius);
+  }
+}
@@ -0,0 +1,18 @@
+package personal.samdunietz.kdtree;
+
+/** Callback for operations that report pairs of KDData, such as
+ * KDTree.forEachPairWithinRadius.
+ * @author samdunietz
+ *
+ * @param <Q> The type of KDData in the pairs.
+ */
+@FunctionalInterface
+public interface KDPairConsumer<Q extends KDData> {
+
+  /** Accepts one pair.
+   * @param first One element of the pair.
+   * @param second The other element of the pair.
+   * @param dist The euclidian distance between first and second.
+   */
+  void accept(Q first, Q second, double dist);
+}
@@ -0,0 +1,50 @@
+package personal.samdunietz.kdtree;
+
+/** One partition of a distributed index: a KDTree of the elements in one
+ * range of space, which is the smallest box holding all of them. This is
+ * what each process serving part of the index runs queries against.
+ * @author samdunietz
+ *
+ * @param <Q> The type of KDData in the partition.
+ */
+public final class KDPartition<Q extends KDData> {
+
+  private final KDTree<Q> tree;
+  private final double[] min;
+  private final double[] max;
+
+  /** Constructs a KDPartition.
+   * @param tree The elements of the partition. If null or empty, throws
+   * IllegalArgumentException.
+   */
+  public KDPartition(KDTree<Q> tree) {
+    if (tree == null || tree.isEmpty()) {
+      throw new IllegalArgumentException("Partition cannot be empty");
+    }
+
+    this.tree = tree;
+    min = tree.boxMin();
+    max = tree.boxMax();
+  }
+
+  /** Gets the tree of the partition's elements.
+   * @return The tree of the partition's elements.
+   */
+  public KDTree<Q> getTree() {
+    return tree;
+  }
+
+  /** Gets the lower corner of the partition's range.
+   * @return The smallest value of each dimension in the partition.
+   */
+  public double[] getMin() {
+    return min.clone();
+  }
+
+  /** Gets the upper corner of the partition's range.
+   * @return The largest value of each dimension in the partition.
+   */
+  public double[] getMax() {
+    return max.clone();
+  }
+}
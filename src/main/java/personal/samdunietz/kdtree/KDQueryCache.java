@@ -0,0 +1,255 @@
+package personal.samdunietz.kdtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Bounded least-recently-used cache of kNearestNeighbor and
+ * findWithinRadius results for a KDTree.
+ *
+ * Query origins are snapped to a grid, so all origins falling in the same
+ * grid cell share one cache entry, and the query is run from the center
+ * of that cell. Results are therefore approximate to within the grid
+ * size; a grid size of 0 caches exact origins only.
+ *
+ * The cache is bound to a single tree snapshot. Since KDTrees are
+ * unmodifiable, updating the data means building a new tree and handing it
+ * to setTree, which drops every entry computed from the old one.
+ *
+ * This class is thread safe.
+ * @author samdunietz
+ *
+ * @param <Q> The type of KDData in the tree.
+ */
+public final class KDQueryCache<Q extends KDData> {
+
+  private final int maxEntries;
+  private final double gridSize;
+  private final Map<Key, List<Q>> entries;
+
+  private KDTree<Q> tree;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /** Constructs a cache in front of a tree.
+   * @param tree The tree to answer queries from.
+   * @param maxEntries The most query results to keep. Once full, the least
+   * recently used result is evicted. If below 1, throws
+   * IllegalArgumentException.
+   * @param gridSize The side length of the grid cells origins are snapped
+   * to, or 0 to only share results between identical origins. If below 0,
+   * throws IllegalArgumentException.
+   */
+  public KDQueryCache(KDTree<Q> tree, int maxEntries, double gridSize) {
+    if (tree == null) {
+      throw new IllegalArgumentException("tree cannot be null");
+    } else if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be at least 1");
+    } else if (gridSize < 0) {
+      throw new IllegalArgumentException("gridSize must be 0 or greater");
+    }
+
+    this.tree = tree;
+    this.maxEntries = maxEntries;
+    this.gridSize = gridSize;
+    entries = new LinkedHashMap<Key, List<Q>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, List<Q>> eldest) {
+        if (size() > KDQueryCache.this.maxEntries) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /** Gets the tree queries are currently answered from.
+   * @return The current tree snapshot.
+   */
+  public synchronized KDTree<Q> getTree() {
+    return tree;
+  }
+
+  /** Replaces the tree queries are answered from. If it is a different
+   * tree than the current one, every cached result is dropped.
+   * @param newTree The new tree snapshot.
+   */
+  public synchronized void setTree(KDTree<Q> newTree) {
+    if (newTree == null) {
+      throw new IllegalArgumentException("tree cannot be null");
+    }
+
+    if (newTree != tree) {
+      tree = newTree;
+      entries.clear();
+    }
+  }
+
+  /** Drops every cached result. Hit and miss counts are kept.
+   */
+  public synchronized void invalidate() {
+    entries.clear();
+  }
+
+  /** Gets the k nearest neighbors to a given point, from the cache if
+   * possible. See KDTree.kNearestNeighbor.
+   * @param origin The datum from which to find the nearest neighbors.
+   * @param k The number of nearest neighbors to find.
+   * @return The k nearest datum to origin's grid cell.
+   */
+  public List<Q> kNearestNeighbor(KDData origin, int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException(
+          "ERROR: k must be an integer greater than zero.");
+    }
+    return query(QueryType.K_NEAREST, origin, k);
+  }
+
+  /** Gets all elements within a given radius of a given point, from the
+   * cache if possible. See KDTree.findWithinRadius.
+   * @param origin The datum from which to find data within radius.
+   * @param radius The euclidian radius within which to give results.
+   * @return All the data within radius of origin's grid cell.
+   */
+  public List<Q> findWithinRadius(KDData origin, double radius) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("Radius must be 0 or greater");
+    }
+    return query(QueryType.WITHIN_RADIUS, origin, radius);
+  }
+
+  private List<Q> query(QueryType type, KDData origin, double param) {
+    double[] loc = origin.getLocData();
+    Key key = new Key(type, quantize(loc), param);
+
+    KDTree<Q> snapshot;
+    synchronized (this) {
+      List<Q> cached = entries.get(key);
+      if (cached != null) {
+        hits++;
+        return new ArrayList<>(cached);
+      }
+      misses++;
+      snapshot = tree;
+    }
+
+    // Run the query outside the lock so misses don't serialize each other.
+    KDData snapped = snap(loc);
+    List<Q> results;
+    if (type == QueryType.K_NEAREST) {
+      results = snapshot.kNearestNeighbor(snapped, (int) param);
+    } else {
+      results = snapshot.findWithinRadius(snapped, param);
+    }
+
+    synchronized (this) {
+      // Don't cache results from a snapshot that was replaced meanwhile.
+      if (snapshot == tree) {
+        entries.put(key, results);
+      }
+    }
+    return new ArrayList<>(results);
+  }
+
+  private long[] quantize(double[] loc) {
+    long[] cell = new long[loc.length];
+    for (int i = 0; i < loc.length; i++) {
+      if (gridSize == 0) {
+        cell[i] = Double.doubleToLongBits(loc[i]);
+      } else {
+        cell[i] = (long) Math.floor(loc[i] / gridSize);
+      }
+    }
+    return cell;
+  }
+
+  private KDData snap(double[] loc) {
+    if (gridSize == 0) {
+      return () -> loc;
+    }
+
+    double[] center = new double[loc.length];
+    for (int i = 0; i < loc.length; i++) {
+      center[i] = (Math.floor(loc[i] / gridSize) + 0.5) * gridSize;
+    }
+    return () -> center;
+  }
+
+  /** Gets the number of queries answered from the cache.
+   * @return The number of cache hits.
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** Gets the number of queries that had to be run against the tree.
+   * @return The number of cache misses.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** Gets the number of results dropped to stay within maxEntries.
+   * @return The number of evictions.
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /** Gets the number of results currently cached.
+   * @return The number of cached results.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private enum QueryType {
+    K_NEAREST, WITHIN_RADIUS
+  }
+
+  /** Cache key: the query type, origin grid cell, and k or radius.
+   * @author samdunietz
+   *
+   */
+  private static final class Key {
+
+    private final QueryType type;
+    private final long[] cell;
+    private final double param;
+
+    private Key(QueryType type, long[] cell, double param) {
+      this.type = type;
+      this.cell = cell;
+      this.param = param;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return type == other.type
+          && Double.compare(param, other.param) == 0
+          && Arrays.equals(cell, other.cell);
+    }
+
+    @Override
+    public int hashCode() {
+      final int prime = 31;
+      int result = type.hashCode();
+      result = prime * result + Double.hashCode(param);
+      result = prime * result + Arrays.hashCode(cell);
+      return result;
+    }
+  }
+}
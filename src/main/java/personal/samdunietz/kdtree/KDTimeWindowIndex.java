@@ -0,0 +1,416 @@
+package personal.samdunietz.kdtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+import com.google.common.collect.MinMaxPriorityQueue;
+
+/** Index of timestamped KDData that are only valid for a fixed window of
+ * time, such as vehicle positions.
+ *
+ * Elements are added to an open bucket covering a short stretch of time.
+ * Once that stretch has passed the bucket is sealed into its own
+ * unmodifiable KDTree, and once every element in a sealed bucket has
+ * expired the whole bucket is dropped. No full tree is ever rebuilt.
+ *
+ * Queries only see elements whose timestamp is within the window of the
+ * current time. They search every live bucket, skipping those that can't
+ * hold results, and scan the open bucket directly.
+ *
+ * This class is thread safe. Sealed trees are built outside the lock, so
+ * adds and queries never wait for one; until a bucket's tree is ready,
+ * queries scan the bucket like the open one.
+ * @author samdunietz
+ *
+ * @param <Q> The type of KDData in the index.
+ */
+public final class KDTimeWindowIndex<Q extends KDData> {
+
+  private final long windowMillis;
+  private final long bucketMillis;
+  private final ToLongFunction<? super Q> timestampOf;
+  private final LongSupplier clock;
+
+  // Guarded by this. Never modified, only replaced, so a query can keep
+  // using the list it was handed.
+  private List<Bucket<Q>> sealed = Collections.emptyList();
+  // Guarded by this. The smallest maxTimestamp in sealed, so adds and
+  // queries only look through the buckets when one of them has expired.
+  private long sealedMinMaxTimestamp = Long.MAX_VALUE;
+
+  // Guarded by this. Set by the first element added, 0 until then.
+  private int numDims;
+
+  // Guarded by this. The open bucket's elements are open[0, openCount).
+  // Each slot is only filled once, and a full array is replaced rather
+  // than grown, so a query can read the slots filled when it started
+  // without copying them.
+  private Object[] open = new Object[16];
+  private int openCount;
+  private long openStart;
+  private long openMinTimestamp = Long.MAX_VALUE;
+  private long openMaxTimestamp = Long.MIN_VALUE;
+
+  /** Constructs an empty index that keeps time with the system clock.
+   * @param windowMillis How long after its timestamp an element expires.
+   * @param bucketMillis How long each bucket is open for. Smaller buckets
+   * expire elements closer to on time and keep the open bucket small, but
+   * mean more trees to search. If not between 1 and windowMillis, throws
+   * IllegalArgumentException.
+   * @param timestampOf Gets an element's timestamp, in milliseconds.
+   */
+  public KDTimeWindowIndex(long windowMillis, long bucketMillis,
+      ToLongFunction<? super Q> timestampOf) {
+    this(windowMillis, bucketMillis, timestampOf, System::currentTimeMillis);
+  }
+
+  /** Constructs an empty index.
+   * @param windowMillis How long after its timestamp an element expires.
+   * @param bucketMillis How long each bucket is open for. If not between
+   * 1 and windowMillis, throws IllegalArgumentException.
+   * @param timestampOf Gets an element's timestamp, in milliseconds.
+   * @param clock Gets the current time, in milliseconds.
+   */
+  public KDTimeWindowIndex(long windowMillis, long bucketMillis,
+      ToLongFunction<? super Q> timestampOf, LongSupplier clock) {
+    if (bucketMillis < 1 || bucketMillis > windowMillis) {
+      throw new IllegalArgumentException(
+          "bucketMillis must be between 1 and windowMillis");
+    } else if (timestampOf == null || clock == null) {
+      throw new IllegalArgumentException(
+          "timestampOf and clock cannot be null");
+    }
+
+    this.windowMillis = windowMillis;
+    this.bucketMillis = bucketMillis;
+    this.timestampOf = timestampOf;
+    this.clock = clock;
+    openStart = bucketStart(clock.getAsLong());
+  }
+
+  private long bucketStart(long time) {
+    return Math.floorDiv(time, bucketMillis) * bucketMillis;
+  }
+
+  /** Adds an element. Elements that have already expired are ignored.
+   * @param item The element to add. Must have the same number of
+   * dimensions as every element added before it, or throws
+   * IllegalArgumentException.
+   */
+  public void add(Q item) {
+    int dims = item.getDims();
+    if (dims == 0) {
+      throw new IllegalArgumentException("Datum cannot have 0 dimensions");
+    }
+
+    long timestamp = timestampOf.applyAsLong(item);
+    Bucket<Q> toSeal;
+    synchronized (this) {
+      if (numDims == 0) {
+        numDims = dims;
+      } else if (dims != numDims) {
+        throw new IllegalArgumentException(
+            "All datum must have same number of dimensions");
+      }
+
+      long now = clock.getAsLong();
+      toSeal = roll(now);
+      if (timestamp >= now - windowMillis) {
+        if (openCount == open.length) {
+          open = Arrays.copyOf(open, 2 * openCount);
+        }
+        open[openCount++] = item;
+        openMinTimestamp = Math.min(openMinTimestamp, timestamp);
+        openMaxTimestamp = Math.max(openMaxTimestamp, timestamp);
+      }
+    }
+    seal(toSeal);
+  }
+
+  /** Adds several elements. Elements that have already expired are
+   * ignored.
+   * @param items The elements to add. All must have the same number of
+   * dimensions as the elements added before them, or throws
+   * IllegalArgumentException, having added those before the first that
+   * doesn't.
+   */
+  public void addAll(Collection<Q> items) {
+    for (Q item : items) {
+      add(item);
+    }
+  }
+
+  /** Seals the open bucket if its time is up and drops buckets whose
+   * elements have all expired. This happens on every add and query
+   * anyway, so calling it is only needed to free memory sooner.
+   */
+  public void expire() {
+    Bucket<Q> toSeal;
+    synchronized (this) {
+      toSeal = roll(clock.getAsLong());
+    }
+    seal(toSeal);
+  }
+
+  // Must hold the lock. Moves the open bucket's elements into a sealed
+  // bucket if its time is up, returning that bucket so its tree can be
+  // built once the lock is released, and drops every bucket whose elements
+  // have all expired. Buckets are in arrival order, not timestamp order,
+  // so any of them may be the next to expire, but the buckets are only
+  // looked through once sealedMinMaxTimestamp says one has.
+  private Bucket<Q> roll(long now) {
+    Bucket<Q> toSeal = null;
+    List<Bucket<Q>> buckets = sealed;
+    if (now >= openStart + bucketMillis) {
+      if (openCount > 0) {
+        toSeal = new Bucket<>(
+            open, openCount, openMinTimestamp, openMaxTimestamp);
+        buckets = new ArrayList<>(buckets);
+        buckets.add(toSeal);
+        sealedMinMaxTimestamp =
+            Math.min(sealedMinMaxTimestamp, openMaxTimestamp);
+      }
+      open = new Object[16];
+      openCount = 0;
+      openStart = bucketStart(now);
+      openMinTimestamp = Long.MAX_VALUE;
+      openMaxTimestamp = Long.MIN_VALUE;
+    }
+
+    long cutoff = now - windowMillis;
+    if (sealedMinMaxTimestamp < cutoff) {
+      List<Bucket<Q>> live = new ArrayList<>(buckets.size());
+      sealedMinMaxTimestamp = Long.MAX_VALUE;
+      for (Bucket<Q> bucket : buckets) {
+        if (bucket.maxTimestamp >= cutoff) {
+          live.add(bucket);
+          sealedMinMaxTimestamp =
+              Math.min(sealedMinMaxTimestamp, bucket.maxTimestamp);
+        }
+      }
+      buckets = live;
+    }
+    sealed = buckets;
+    return toSeal;
+  }
+
+  // Builds a sealed bucket's tree without holding the lock, then swaps it
+  // in for the bucket unless the bucket has expired in the meantime.
+  private void seal(Bucket<Q> bucket) {
+    if (bucket == null) {
+      return;
+    }
+
+    Bucket<Q> built = new Bucket<>(new KDTree<>(bucket.items()),
+        bucket.minTimestamp, bucket.maxTimestamp);
+    synchronized (this) {
+      int index = sealed.indexOf(bucket);
+      if (index >= 0) {
+        List<Bucket<Q>> buckets = new ArrayList<>(sealed);
+        buckets.set(index, built);
+        sealed = buckets;
+      }
+    }
+  }
+
+  /** Gets the number of elements held, including any that have expired
+   * but whose bucket hasn't been dropped yet.
+   * @return The number of elements held.
+   */
+  public synchronized int size() {
+    int size = openCount;
+    for (Bucket<Q> bucket : sealed) {
+      size += bucket.size();
+    }
+    return size;
+  }
+
+  /** Gets the k nearest unexpired elements to a given point.
+   * @param origin The datum from which to find the nearest neighbors.
+   * @param k The number of nearest neighbors to find. If below 1, throws
+   * IllegalArgumentException.
+   * @return The k nearest unexpired elements to origin, nearest first.
+   */
+  public List<Q> kNearestNeighbor(KDData origin, int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException(
+          "ERROR: k must be an integer greater than zero.");
+    }
+
+    Snapshot<Q> snapshot = snapshot();
+    Predicate<Q> live = item ->
+        timestampOf.applyAsLong(item) >= snapshot.cutoff;
+    double[] loc = origin.getLocData();
+
+    // Buckets without a tree yet are scanned first, keeping only the best
+    // k, so the kth distance they give can rule out whole trees.
+    MinMaxPriorityQueue<KDTree.Neighbor<Q>> nearest =
+        MinMaxPriorityQueue.maximumSize(k).create();
+    List<Bucket<Q>> trees = new ArrayList<>();
+    for (Bucket<Q> bucket : snapshot.buckets) {
+      if (bucket.tree == null) {
+        for (int i = 0; i < bucket.count; i++) {
+          offer(nearest, k, origin, bucket.get(i), live);
+        }
+      } else {
+        trees.add(bucket);
+      }
+    }
+
+    // Nearest trees first, so the kth distance found so far can rule out
+    // the rest.
+    trees.sort(
+        Comparator.comparingDouble(bucket -> bucket.tree.boxDistance(loc)));
+    for (Bucket<Q> bucket : trees) {
+      double bound = nearest.size() < k
+          ? Double.POSITIVE_INFINITY
+          : nearest.peekLast().dist;
+      if (bucket.tree.boxDistance(loc) >= bound) {
+        continue;
+      }
+
+      List<Q> found = bucket.minTimestamp >= snapshot.cutoff
+          ? bucket.tree.kNearestWithinRadius(origin, k, bound)
+          : bucket.tree.kNearestMatching(origin, k, bound, live);
+      for (Q item : found) {
+        offer(nearest, k, origin, item, live);
+      }
+    }
+    return KDTree.sortedItems(new ArrayList<>(nearest));
+  }
+
+  // Adds item to nearest if it is live and among the k nearest so far.
+  private void offer(MinMaxPriorityQueue<KDTree.Neighbor<Q>> nearest, int k,
+      KDData origin, Q item, Predicate<Q> live) {
+    double dist = item.euclidianDist(origin);
+    if ((nearest.size() < k || dist < nearest.peekLast().dist)
+        && live.test(item)) {
+      nearest.add(new KDTree.Neighbor<>(item, dist));
+    }
+  }
+
+  /** Gets all unexpired elements within a given radius of a given point.
+   * @param origin The datum from which to find data within radius.
+   * @param radius The euclidian radius within which to give results. If
+   * less than 0, throws IllegalArgumentException.
+   * @return All the unexpired elements within radius of origin, nearest
+   * first.
+   */
+  public List<Q> findWithinRadius(KDData origin, double radius) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("Radius must be 0 or greater");
+    }
+
+    Snapshot<Q> snapshot = snapshot();
+    double[] loc = origin.getLocData();
+    List<KDTree.Neighbor<Q>> withinRadius = new ArrayList<>();
+    for (Bucket<Q> bucket : snapshot.buckets) {
+      if (bucket.tree == null) {
+        for (int i = 0; i < bucket.count; i++) {
+          Q item = bucket.get(i);
+          double dist = item.euclidianDist(origin);
+          if (dist < radius
+              && timestampOf.applyAsLong(item) >= snapshot.cutoff) {
+            withinRadius.add(new KDTree.Neighbor<>(item, dist));
+          }
+        }
+      } else if (bucket.tree.boxDistance(loc) < radius) {
+        bucket.tree.forEachWithinRadius(origin, radius, (item, dist) -> {
+          if (timestampOf.applyAsLong(item) >= snapshot.cutoff) {
+            withinRadius.add(new KDTree.Neighbor<>(item, dist));
+          }
+          return true;
+        });
+      }
+    }
+    return KDTree.sortedItems(withinRadius);
+  }
+
+  // Hands out the live buckets, with the open bucket's filled slots as one
+  // more bucket without a tree. Nothing is copied but the list of buckets.
+  private Snapshot<Q> snapshot() {
+    Bucket<Q> toSeal;
+    Snapshot<Q> snapshot;
+    synchronized (this) {
+      long now = clock.getAsLong();
+      toSeal = roll(now);
+      List<Bucket<Q>> buckets = new ArrayList<>(sealed.size() + 1);
+      buckets.addAll(sealed);
+      buckets.add(new Bucket<>(
+          open, openCount, openMinTimestamp, openMaxTimestamp));
+      snapshot = new Snapshot<>(buckets, now - windowMillis);
+    }
+    seal(toSeal);
+    return snapshot;
+  }
+
+  /** A bucket and the range of its elements' timestamps. Its elements are
+   * either in a tree, or, until the tree is built, in items[0, count).
+   * @author samdunietz
+   *
+   * @param <T> The type of KDData in the bucket.
+   */
+  private static final class Bucket<T extends KDData> {
+
+    private final KDTree<T> tree;
+    private final Object[] items;
+    private final int count;
+    private final long minTimestamp;
+    private final long maxTimestamp;
+
+    private Bucket(KDTree<T> tree, long minTimestamp, long maxTimestamp) {
+      this.tree = tree;
+      items = null;
+      count = 0;
+      this.minTimestamp = minTimestamp;
+      this.maxTimestamp = maxTimestamp;
+    }
+
+    private Bucket(
+        Object[] items, int count, long minTimestamp, long maxTimestamp) {
+      tree = null;
+      this.items = items;
+      this.count = count;
+      this.minTimestamp = minTimestamp;
+      this.maxTimestamp = maxTimestamp;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T get(int i) {
+      return (T) items[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<T> items() {
+      return (List<T>) (List<?>) Arrays.asList(items).subList(0, count);
+    }
+
+    private int size() {
+      return tree == null ? count : tree.size();
+    }
+  }
+
+  /** What a query sees: the live buckets and the oldest timestamp that
+   * hasn't expired.
+   * @author samdunietz
+   *
+   * @param <T> The type of KDData in the index.
+   */
+  private static final class Snapshot<T extends KDData> {
+
+    private final List<Bucket<T>> buckets;
+    private final long cutoff;
+
+    private Snapshot(List<Bucket<T>> buckets, long cutoff) {
+      this.buckets = buckets;
+      this.cutoff = cutoff;
+    }
+  }
+}
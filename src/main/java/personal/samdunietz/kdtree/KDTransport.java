@@ -0,0 +1,56 @@
+package personal.samdunietz.kdtree;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/** How a KDCoordinator reaches the partitions of a distributed index.
+ *
+ * Each partition owns a range of space, the smallest box holding all its
+ * elements, and answers queries over the elements in it. An
+ * implementation talking to other processes serializes each query's
+ * origin location and arguments, and the results, however it likes;
+ * LoopbackTransport runs everything in this process.
+ * @author samdunietz
+ *
+ * @param <Q> The type of KDData in the partitions.
+ */
+public interface KDTransport<Q extends KDData> {
+
+  /** Gets the number of partitions.
+   * @return The number of partitions, each numbered from 0 up to this.
+   */
+  int numPartitions();
+
+  /** Gets the lower corner of a partition's range.
+   * @param partition The partition whose range to get.
+   * @return The smallest value of each dimension in the partition.
+   */
+  double[] getMin(int partition);
+
+  /** Gets the upper corner of a partition's range.
+   * @param partition The partition whose range to get.
+   * @return The largest value of each dimension in the partition.
+   */
+  double[] getMax(int partition);
+
+  /** Asks a partition for the k nearest neighbors to a given point that
+   * are within a given radius of it, as KDTree.kNearestWithinRadius.
+   * @param partition The partition to ask.
+   * @param origin The datum from which to find the nearest neighbors.
+   * @param k The most neighbors to find.
+   * @param radius The euclidian radius within which to give results.
+   * @return The partition's results, nearest first, once they arrive.
+   */
+  CompletableFuture<List<Q>> kNearestWithinRadius(
+      int partition, KDData origin, int k, double radius);
+
+  /** Asks a partition for all its elements within a given radius of a given
+   * point, as KDTree.findWithinRadius.
+   * @param partition The partition to ask.
+   * @param origin The datum from which to find data within radius.
+   * @param radius The euclidian radius within which to give results.
+   * @return The partition's results, nearest first, once they arrive.
+   */
+  CompletableFuture<List<Q>> findWithinRadius(
+      int partition, KDData origin, double radius);
+}
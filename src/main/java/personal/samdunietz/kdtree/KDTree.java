@@ -1,10 +1,19 @@
 package personal.samdunietz.kdtree;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Lists;
@@ -25,20 +34,50 @@ public final class KDTree<Q extends KDData> {
   private final int numDims;
   private final KDNode root;
 
+  // Gets the category each node summarizes in its categories mask, or null
+  // if the tree doesn't index categories.
+  private final Function<? super Q, ?> categoryOf;
+
   private int size = -1;
   private int depth = -1;
 
+  // The elements in each dimension's sorted order, kept from building the
+  // tree so merging it never sorts again. That is an int per element per
+  // dimension, a quarter of what the nodes' bounding boxes take. Null for
+  // empty trees and for subtrees from getLeft and getRight.
+  private final Presorted<Q> presorted;
+
   private final static String emptyMessage = "Tree is empty";
 
+  // Subtrees with more elements than this are split into parallel tasks.
+  private static final int PARALLEL_THRESHOLD = 1 << 10;
+
   /** Constructs a KDDTree out of a Collection of KDData.
    * @param treeData A list with all the data for the KDTree.
    */
   public KDTree(Collection<Q> treeData) {
+    this(treeData, null);
+  }
+
+  /** Constructs a KDTree out of a Collection of KDData, indexing a
+   * categorical attribute of each element so kNearestInCategory can skip
+   * subtrees with no elements in the category searched for.
+   *
+   * Each node keeps a 64 bit summary of the categories in its subtree, so
+   * any number of categories can be indexed, but with many more than 64 of
+   * them subtrees are skipped less often.
+   * @param treeData A list with all the data for the KDTree.
+   * @param categoryOf Gets an element's category. Categories are compared
+   * with equals. If null, no categories are indexed.
+   */
+  public KDTree(Collection<Q> treeData, Function<? super Q, ?> categoryOf) {
+    this.categoryOf = categoryOf;
     if (treeData == null) {
       throw new IllegalArgumentException("treeData cannot be null");
     }
 
     if (treeData.isEmpty()) {
+      presorted = null;
       root = null;
       numDims = -1;
       size = 0;
@@ -59,46 +98,200 @@ public final class KDTree<Q extends KDData> {
 
       numDims = firstNumDims;
 
-      // Make copy of treeData so sorts in buildSubtree don't affect clients.
-      List<Q> treeDataCopy = new ArrayList<Q>(treeData);
-
-      root = buildSubtree(treeDataCopy, new KDDataComparator<Q>(numDims));
+      // Make copy of treeData so later changes to it don't affect the tree.
+      presorted = Presorted.sort(new ArrayList<Q>(treeData), numDims);
+      root = buildPresorted(presorted);
 
       size = treeData.size();
       depth = root.depth();
     }
   }
 
-  private KDTree(KDNode node) {
+  private KDTree(KDNode node, Function<? super Q, ?> categoryOf) {
     numDims = node.data.getDims();
     root = node;
+    this.categoryOf = categoryOf;
+    presorted = null;
+  }
 
+  private KDTree(Presorted<Q> presorted, int numDims,
+      Function<? super Q, ?> categoryOf) {
+    this.numDims = numDims;
+    this.categoryOf = categoryOf;
+    this.presorted = presorted;
+    root = buildPresorted(presorted);
+    size = presorted.items.size();
+    depth = root.depth();
   }
 
-  private KDNode buildSubtree(List<Q> treeData, KDDataComparator<Q> comp) {
-    if (treeData.size() == 0) {
+  // Sorting every dimension once up front, then splitting those orders at
+  // each level, builds the tree in O(dims * n log n) instead of sorting
+  // again at every level. The orders in sorted are left as they were.
+  private KDNode buildPresorted(Presorted<Q> sorted) {
+    int n = sorted.items.size();
+    Map<Integer, List<Q>> duplicates = new HashMap<>();
+    boolean[] isDuplicate = new boolean[n];
+    findDuplicates(sorted, duplicates, isDuplicate);
+
+    // Only one element of each location goes in the orders being split.
+    int m = n;
+    for (boolean duplicate : isDuplicate) {
+      if (duplicate) {
+        m--;
+      }
+    }
+    int[][] orders = new int[numDims][m];
+    for (int dim = 0; dim < numDims; dim++) {
+      int k = 0;
+      for (int index : sorted.orders[dim]) {
+        if (!isDuplicate[index]) {
+          orders[dim][k++] = index;
+        }
+      }
+    }
+    return buildSubtree(sorted.items, orders, duplicates, new boolean[n],
+        new int[n], 0, m, 0);
+  }
+
+  // Elements at exactly the same location share one node, so heavily
+  // repeated coordinates add neither depth nor nodes to visit. Maps the
+  // first element at each repeated location to the others there, and marks
+  // the others in isDuplicate. Elements at one location are all within a
+  // run of ties in the first dimension's order, so only those runs are
+  // hashed.
+  private void findDuplicates(Presorted<Q> sorted,
+      Map<Integer, List<Q>> duplicates, boolean[] isDuplicate) {
+    int[] order = sorted.orders[0];
+    int start = 0;
+    while (start < order.length) {
+      double value = sorted.items.get(order[start]).getComponent(0);
+      int end = start + 1;
+      while (end < order.length && Double.compare(
+          sorted.items.get(order[end]).getComponent(0), value) == 0) {
+        end++;
+      }
+
+      if (end - start > 1) {
+        Map<Location, Integer> firstAt = new HashMap<>();
+        for (int i = start; i < end; i++) {
+          int index = order[i];
+          Q item = sorted.items.get(index);
+          Integer first = firstAt.putIfAbsent(
+              new Location(item.getLocData()), index);
+          if (first != null) {
+            duplicates.computeIfAbsent(first, f -> new ArrayList<>())
+                .add(item);
+            isDuplicate[index] = true;
+          }
+        }
+      }
+      start = end;
+    }
+  }
+
+  // Builds the subtree over range [lo, hi) of orders, where orders[d] holds
+  // indices into items sorted on dimension d. Partitions orders in place
+  // so each subtree's elements end up in its own range, still sorted.
+  // Elements tied with the middle one on currDim go to either side by
+  // their place in the order, so ties are split evenly too.
+  private KDNode buildSubtree(List<Q> items, int[][] orders,
+      Map<Integer, List<Q>> duplicates, boolean[] goesLeft, int[] scratch,
+      int lo, int hi, int currDim) {
+    if (lo >= hi) {
       return null;
     }
-    if (treeData.size() == 1) {
-      return new KDNode(treeData.get(0), comp.getCurrDim(), null, null);
-    } else {
-      Collections.sort(treeData, comp);
 
-      int middle = treeData.size() / 2;
-      Q middleData = treeData.get(middle);
-      List<Q> leftTreeData = treeData.subList(0, middle);
-      List<Q> rightTreeData = treeData.subList(middle + 1, treeData.size());
+    int middle = lo + (hi - lo) / 2;
+    int middleIndex = orders[currDim][middle];
+    for (int i = lo; i < hi; i++) {
+      goesLeft[orders[currDim][i]] = i < middle;
+    }
 
-      // Get currDim so the KDNode will have correct current dimension
-      // info, then increment comp to pass down correct dimension info
-      // to subtrees.
-      int currDim = comp.getCurrDim();
-      comp = comp.incrementDim();
+    for (int dim = 0; dim < numDims; dim++) {
+      if (dim != currDim) {
+        int[] order = orders[dim];
+        int left = lo;
+        int right = middle + 1;
+        for (int i = lo; i < hi; i++) {
+          int index = order[i];
+          if (index == middleIndex) {
+            continue;
+          } else if (goesLeft[index]) {
+            scratch[left++] = index;
+          } else {
+            scratch[right++] = index;
+          }
+        }
+        scratch[middle] = middleIndex;
+        System.arraycopy(scratch, lo, order, lo, hi - lo);
+      }
+    }
 
-      return new KDNode(middleData, currDim,
-          buildSubtree(leftTreeData, comp),
-          buildSubtree(rightTreeData, comp));
+    int nextDim = (currDim + 1) % numDims;
+    return new KDNode(items.get(middleIndex),
+        duplicates.getOrDefault(middleIndex, Collections.emptyList()),
+        currDim,
+        buildSubtree(items, orders, duplicates, goesLeft, scratch,
+            lo, middle, nextDim),
+        buildSubtree(items, orders, duplicates, goesLeft, scratch,
+            middle + 1, hi, nextDim));
+  }
+
+  /** Builds a KDTree with the elements of two others, without sorting.
+   * Every tree keeps its elements' order on each dimension from when it
+   * was built, so the two trees' orders are merged in linear time, and the
+   * new tree is built by splitting them, which is linear time per level.
+   * Subtrees from getLeft and getRight keep no orders, so merging one
+   * sorts its elements first.
+   * @param <Q> The type of KDData in the trees.
+   * @param a One tree to merge.
+   * @param b The other tree to merge. If both are non-empty, must have the
+   * same number of dimensions as a, or throws IllegalArgumentException.
+   * @return A tree with every element of a and every element of b. It
+   * indexes categories only if a and b index them with the same function.
+   */
+  public static <Q extends KDData> KDTree<Q> merge(KDTree<Q> a, KDTree<Q> b) {
+    if (a == null || b == null) {
+      throw new IllegalArgumentException("Trees to merge cannot be null");
+    } else if (a.isEmpty()) {
+      return b;
+    } else if (b.isEmpty()) {
+      return a;
+    } else if (a.numDims != b.numDims) {
+      throw new IllegalArgumentException(
+          "All datum must have same number of dimensions");
     }
+
+    return new KDTree<>(
+        Presorted.merge(a.presorted(), b.presorted(), a.numDims), a.numDims,
+        a.categoryOf == b.categoryOf ? a.categoryOf : null);
+  }
+
+  /** Builds a KDTree with the elements of this one plus some more, as
+   * merge does. Only the added elements are sorted, so adding a few
+   * elements to a large tree costs little more than the linear merge and
+   * the split.
+   * @param added The elements to add. All must have the same number of
+   * dimensions as this tree, or throws IllegalArgumentException.
+   * @return A tree with every element of this one and of added.
+   */
+  public KDTree<Q> withAdded(Collection<Q> added) {
+    if (added == null) {
+      throw new IllegalArgumentException("added cannot be null");
+    } else if (isEmpty() || added.isEmpty()) {
+      return isEmpty() ? new KDTree<>(added, categoryOf) : this;
+    } else if (added.stream().anyMatch(d -> d.getDims() != numDims)) {
+      throw new IllegalArgumentException(
+          "All datum must have same number of dimensions");
+    }
+
+    Presorted<Q> sortedAdded = Presorted.sort(new ArrayList<>(added), numDims);
+    return new KDTree<>(Presorted.merge(presorted(), sortedAdded, numDims),
+        numDims, categoryOf);
+  }
+
+  private Presorted<Q> presorted() {
+    return presorted != null ? presorted : Presorted.sort(toList(), numDims);
   }
 
   /** Gets the number of dimensions of the data in the tree.
@@ -116,8 +309,8 @@ public final class KDTree<Q extends KDData> {
   /** Gets the current dimension the tree is split on.
    * If the tree is empty, throws NoSuchElementException.
    * @return The current dimension the tree is split on.
-   * All elements to the left have a lower value for this dimension,
-   * while all elements to the right have a higher value.
+   * All elements to the left have a value no higher for this dimension,
+   * while all elements to the right have a value no lower.
    */
   public int getCurrDim() {
     if (isEmpty()) {
@@ -167,7 +360,24 @@ public final class KDTree<Q extends KDData> {
     return depth;
   }
 
-  /** Gets the element at the root of the tree.
+  // Smallest possible distance from loc to any element in the tree.
+  double boxDistance(double[] loc) {
+    return isEmpty() ? Double.POSITIVE_INFINITY : root.boxDistance(loc);
+  }
+
+  // Corners of the smallest box containing every element in the tree, so
+  // indexes mirroring the tree can share its bounds. Null if the tree is
+  // empty. These are the root's own arrays, so they must not be changed.
+  double[] boxMin() {
+    return isEmpty() ? null : root.min;
+  }
+
+  double[] boxMax() {
+    return isEmpty() ? null : root.max;
+  }
+
+  /** Gets the element at the root of the tree. Other elements at exactly
+   * the same location share the root; see getRootElements.
    * @return The element at the root of the tree. If the tree is empty,
    * returns null.
    */
@@ -179,8 +389,22 @@ public final class KDTree<Q extends KDData> {
     }
   }
 
+  /** Gets every element at the root of the tree, meaning getRoot() and any
+   * other elements at exactly the same location.
+   * @return The elements at the root of the tree, starting with getRoot().
+   * If the tree is empty, returns an empty list.
+   */
+  public List<Q> getRootElements() {
+    List<Q> elements = new ArrayList<>();
+    if (!isEmpty()) {
+      elements.add(root.data);
+      elements.addAll(root.duplicates);
+    }
+    return elements;
+  }
+
   /** Gets the left subtree.
-   * @return All elements to the left will have a lower value
+   * @return All elements to the left will have a value no higher
    * for the dimension this level of the subtree is dividing on. This
    * dimension is accessible by calling getCurrDim(). If the current root
    * has no children, returns null. If the tree is empty,
@@ -192,12 +416,12 @@ public final class KDTree<Q extends KDData> {
     } else if (root.left == null) {
       return null;
     } else {
-      return new KDTree<>(root.left);
+      return new KDTree<>(root.left, categoryOf);
     }
   }
 
   /** Gets the right subtree.
-   * @return All elements to the right will have a greater value
+   * @return All elements to the right will have a value no lower
    * for the dimension this level of the subtree is dividing on. This
    * dimension is accessible by calling getCurrDim(). If the current root
    * has no children, returns null. If the tree is empty,
@@ -209,7 +433,7 @@ public final class KDTree<Q extends KDData> {
     } else if (root.right == null) {
       return null;
     } else {
-      return new KDTree<>(root.right);
+      return new KDTree<>(root.right, categoryOf);
     }
   }
 
@@ -278,6 +502,111 @@ public final class KDTree<Q extends KDData> {
    * If the tree is empty, returns an empty list.
    */
   public <R extends KDData> List<Q> kNearestNeighbor(R origin, int k) {
+    return kNearestWithinRadius(origin, k, Double.POSITIVE_INFINITY);
+  }
+
+  /** Gets the k nearest neighbors to a given point that are also within a
+   * given radius of it. The radius bounds the search from the start, and
+   * only the best k elements found so far are ever kept, so the cost
+   * depends on k rather than on how many elements lie within radius.
+   * @param <R> The type of the origin. Must be a KDData with the same
+   * dimension as the KDTree.
+   * @param origin The datum from which to find the nearest neighbors.
+   * Can be of a different type than Q, so long as the other type
+   * has the same dimension. If not, throws IllegalArgumentException.
+   * @param k The most neighbors to find. If below 1, throws
+   * IllegalArgumentException.
+   * @param radius The euclidian radius within which to give results. If
+   * less than 0, throws IllegalArgumentException.
+   * @return Up to k datum within radius of origin, nearest first. If the
+   * tree is empty, returns an empty list.
+   */
+  public <R extends KDData> List<Q> kNearestWithinRadius(
+      R origin, int k, double radius) {
+    if (isEmpty()) {
+      return new ArrayList<>();
+    } else if (origin.getDims() != numDims) {
+      throw new IllegalArgumentException(
+          "Given datum doesn't have same number of dimensions as KDTree");
+    }
+
+    return kNearestMatching(origin, k, radius, item -> true);
+  }
+
+  /** Gets the k nearest neighbors to a given point that pass a filter.
+   * The filter is checked during the search, so only passing elements
+   * take up any of the k places, however rare they are.
+   * @param <R> The type of the origin. Must be a KDData with the same
+   * dimension as the KDTree.
+   * @param origin The datum from which to find the nearest neighbors.
+   * Can be of a different type than Q, so long as the other type
+   * has the same dimension. If not, throws IllegalArgumentException.
+   * @param k The most neighbors to find. If below 1, throws
+   * IllegalArgumentException.
+   * @param filter Whether an element may be a result.
+   * @return Up to k datum that pass filter, nearest first. If the tree is
+   * empty, returns an empty list.
+   */
+  public <R extends KDData> List<Q> kNearestNeighbor(
+      R origin, int k, Predicate<? super Q> filter) {
+    return kNearestMatching(origin, k, Double.POSITIVE_INFINITY, filter);
+  }
+
+  /** Gets the k nearest neighbors to a given point in a given category.
+   * Subtrees whose category summary rules out the category are skipped
+   * without being searched.
+   * @param <R> The type of the origin. Must be a KDData with the same
+   * dimension as the KDTree.
+   * @param origin The datum from which to find the nearest neighbors.
+   * Can be of a different type than Q, so long as the other type
+   * has the same dimension. If not, throws IllegalArgumentException.
+   * @param k The most neighbors to find. If below 1, throws
+   * IllegalArgumentException.
+   * @param category The category results must be in. If the tree wasn't
+   * built with a category function, throws IllegalStateException.
+   * @return Up to k datum in category, nearest first. If the tree is empty,
+   * returns an empty list.
+   */
+  public <R extends KDData> List<Q> kNearestInCategory(
+      R origin, int k, Object category) {
+    if (categoryOf == null) {
+      throw new IllegalStateException("Tree doesn't index categories");
+    }
+
+    return kNearestMatching(origin, k, Double.POSITIVE_INFINITY,
+        categoryBit(category),
+        item -> Objects.equals(category, categoryOf.apply(item)));
+  }
+
+  // The bit standing for category in a node's categories mask. The hash is
+  // mixed first so categories with similar hashes get different bits.
+  private static long categoryBit(Object category) {
+    long hash = Objects.hashCode(category) * 0x9E3779B97F4A7C15L;
+    return 1L << (hash >>> 58);
+  }
+
+  // kNearestWithinRadius, skipping over elements that don't pass filter.
+  List<Q> kNearestMatching(
+      KDData origin, int k, double radius, Predicate<? super Q> filter) {
+    return kNearestMatching(origin, k, radius, -1L, filter);
+  }
+
+  // kNearestMatching, also skipping subtrees whose categories mask shares
+  // no bits with categories.
+  private List<Q> kNearestMatching(KDData origin, int k, double radius,
+      long categories, Predicate<? super Q> filter) {
+    return items(neighborsMatching(origin, k, radius, categories, filter));
+  }
+
+  // kNearestWithinRadius, keeping each result's distance, for callers
+  // merging results from several trees.
+  List<Neighbor<Q>> kNearestWithDistances(
+      KDData origin, int k, double radius) {
+    return neighborsMatching(origin, k, radius, -1L, item -> true);
+  }
+
+  private List<Neighbor<Q>> neighborsMatching(KDData origin, int k,
+      double radius, long categories, Predicate<? super Q> filter) {
     if (isEmpty()) {
       return new ArrayList<>();
     } else if (origin.getDims() != numDims) {
@@ -288,34 +617,35 @@ public final class KDTree<Q extends KDData> {
     if (k <= 0) {
       throw new IllegalArgumentException(
           "ERROR: k must be an integer greater than zero.");
-    } else {
-      ClosestComparator<R, Q> comp = new ClosestComparator<>(origin);
-      MinMaxPriorityQueue<Q> queue =
-          MinMaxPriorityQueue.orderedBy(comp)
-          .maximumSize(k).create();
-      MinMaxPriorityQueue<Q> bestGuesses =
-          knnHelper(origin, queue, root, k);
-
-      List<Q> kNearestNeighbors =
-          castObjects(bestGuesses.toArray());
-
-      // Before following, list is unsorted by distance
-      Collections.sort(kNearestNeighbors, comp);
-      return kNearestNeighbors;
+    } else if (radius < 0) {
+      throw new IllegalArgumentException("Radius must be 0 or greater");
     }
+
+    MinMaxPriorityQueue<Neighbor<Q>> bestGuesses =
+        MinMaxPriorityQueue.maximumSize(k).create();
+    knnHelper(origin, bestGuesses, root, k, radius, categories, filter);
+    List<Neighbor<Q>> nearest = new ArrayList<>(bestGuesses);
+    Collections.sort(nearest);
+    return nearest;
   }
 
-  private MinMaxPriorityQueue<Q> knnHelper(KDData origin,
-      MinMaxPriorityQueue<Q> bestGuesses, KDNode curr, int k) {
+  private void knnHelper(KDData origin,
+      MinMaxPriorityQueue<Neighbor<Q>> bestGuesses, KDNode curr, int k,
+      double radius, long categories, Predicate<? super Q> filter) {
 
-    if (curr == null) {
-      return bestGuesses;
+    if (curr == null || (curr.categories & categories) == 0) {
+      return;
     }
 
-    // Adds current node's data to bestGuess. This will do nothing
-    // if bestGuesses is full and the current node's data is worse
-    // than the worst datum in bestGuesses.
-    bestGuesses.add(curr.data);
+    // Only datum closer than both radius and the worst of a full
+    // bestGuesses are worth adding.
+    double dist = origin.euclidianDist(curr.data);
+    for (int i = 0; i < curr.multiplicity(); i++) {
+      Q item = curr.element(i);
+      if (dist < bound(bestGuesses, k, radius) && filter.test(item)) {
+        bestGuesses.add(new Neighbor<>(item, dist));
+      }
+    }
 
     double currComponentDifference =
         origin.getComponent(curr.currDim)
@@ -324,33 +654,178 @@ public final class KDTree<Q extends KDData> {
     // So we know where we looked if we have to search the other subtree
     boolean searchedLeft;
     if (currComponentDifference < 0) {
-      bestGuesses = knnHelper(origin, bestGuesses, curr.getLeft(), k);
+      knnHelper(
+          origin, bestGuesses, curr.getLeft(), k, radius, categories,
+          filter);
       searchedLeft = true;
     } else {
-      bestGuesses = knnHelper(origin, bestGuesses, curr.getRight(), k);
+      knnHelper(
+          origin, bestGuesses, curr.getRight(), k, radius, categories,
+          filter);
       searchedLeft = false;
     }
 
-    // Search other subtree if bestGuesses doesn't have k elements
-    // or if its guesses aren't good enough
-    // (when |currComponentDifference| < dist for worst element of bestGuesses)
-    boolean bestGuessesIsFull = bestGuesses.size() == k;
-    boolean guessesNotGoodEnough =
-        Math.abs(currComponentDifference)
-        // Distance between the farthest element in bestGuesses
-        < bestGuesses.peekLast().euclidianDist(origin);
-
-    if (!bestGuessesIsFull || guessesNotGoodEnough) {
+    // Search other subtree if it could hold something within the bound
+    // (when |currComponentDifference| < bound)
+    if (Math.abs(currComponentDifference) < bound(bestGuesses, k, radius)) {
       if (searchedLeft) {
-        bestGuesses = knnHelper(
-            origin, bestGuesses, curr.getRight(), k);
+        knnHelper(
+            origin, bestGuesses, curr.getRight(), k, radius, categories,
+            filter);
       } else {
-        bestGuesses = knnHelper(
-            origin, bestGuesses, curr.getLeft(), k);
+        knnHelper(
+            origin, bestGuesses, curr.getLeft(), k, radius, categories,
+            filter);
+      }
+    }
+  }
+
+  // Distance a datum must be closer than to make it into bestGuesses.
+  private double bound(
+      MinMaxPriorityQueue<Neighbor<Q>> bestGuesses, int k, double radius) {
+    if (bestGuesses.size() < k) {
+      return radius;
+    } else {
+      return Math.min(radius, bestGuesses.peekLast().dist);
+    }
+  }
+
+  /** Gets the k nearest neighbors to a given point by weighted euclidian
+   * distance, the square root of the sum over each dimension i of
+   * (weights[i] * (a[i] - b[i]))^2. The same tree serves any weights, so
+   * they can change from one query to the next.
+   * @param <R> The type of the origin. Must be a KDData with the same
+   * dimension as the KDTree.
+   * @param origin The datum from which to find the nearest neighbors.
+   * Can be of a different type than Q, so long as the other type
+   * has the same dimension. If not, throws IllegalArgumentException.
+   * @param k The number of nearest neighbors to find. If below 1, throws
+   * IllegalArgumentException.
+   * @param weights The weight of each dimension. If not one finite weight of
+   * 0 or greater per dimension, throws IllegalArgumentException.
+   * @return The k nearest datum to origin by weighted distance, nearest
+   * first. If the tree is empty, returns an empty list.
+   */
+  public <R extends KDData> List<Q> kNearestWeighted(
+      R origin, int k, double[] weights) {
+    if (isEmpty()) {
+      return new ArrayList<>();
+    }
+    checkWeighted(origin, weights);
+    if (k <= 0) {
+      throw new IllegalArgumentException(
+          "ERROR: k must be an integer greater than zero.");
+    }
+
+    MinMaxPriorityQueue<Neighbor<Q>> bestGuesses =
+        MinMaxPriorityQueue.maximumSize(k).create();
+    weightedKnnHelper(origin.getLocData(), weights, bestGuesses, root, k);
+    return sortedItems(new ArrayList<>(bestGuesses));
+  }
+
+  private void weightedKnnHelper(double[] loc, double[] weights,
+      MinMaxPriorityQueue<Neighbor<Q>> bestGuesses, KDNode curr, int k) {
+    if (curr == null) {
+      return;
+    }
+
+    double dist = weightedDist(loc, curr.data.getLocData(), weights);
+    for (int i = 0; i < curr.multiplicity(); i++) {
+      if (dist < bound(bestGuesses, k, Double.POSITIVE_INFINITY)) {
+        bestGuesses.add(new Neighbor<>(curr.element(i), dist));
+      }
+    }
+
+    // The split plane is as far away as the gap in its own dimension,
+    // scaled by that dimension's weight.
+    double currComponentDifference =
+        loc[curr.currDim] - curr.getComponent(curr.currDim);
+    KDNode near = currComponentDifference < 0 ? curr.left : curr.right;
+    KDNode far = currComponentDifference < 0 ? curr.right : curr.left;
+    weightedKnnHelper(loc, weights, bestGuesses, near, k);
+    if (weights[curr.currDim] * Math.abs(currComponentDifference)
+        < bound(bestGuesses, k, Double.POSITIVE_INFINITY)) {
+      weightedKnnHelper(loc, weights, bestGuesses, far, k);
+    }
+  }
+
+  /** Gets all elements within a given weighted euclidian distance of a
+   * given point. See kNearestWeighted for how distance is weighted.
+   * @param <R> The type of the origin. Must be a KDData with the same
+   * dimension as the KDTree.
+   * @param origin The datum from which to find data within radius.
+   * Can be of a different type than Q, so long as the other type
+   * has the same dimension. If not, throws IllegalArgumentException.
+   * @param radius The weighted radius within which to give results. If
+   * less than 0, throws IllegalArgumentException.
+   * @param weights The weight of each dimension. If not one finite weight of
+   * 0 or greater per dimension, throws IllegalArgumentException.
+   * @return All the data within weighted distance radius of origin, nearest
+   * first. If the tree is empty, returns an empty list.
+   */
+  public <R extends KDData> List<Q> findWithinRadiusWeighted(
+      R origin, double radius, double[] weights) {
+    if (isEmpty()) {
+      return new ArrayList<>();
+    }
+    checkWeighted(origin, weights);
+    if (radius < 0) {
+      throw new IllegalArgumentException("Radius must be 0 or greater");
+    }
+
+    List<Neighbor<Q>> withinRadius = new ArrayList<>();
+    weightedFwrHelper(
+        origin.getLocData(), weights, radius, root, withinRadius);
+    return sortedItems(withinRadius);
+  }
+
+  private void weightedFwrHelper(double[] loc, double[] weights,
+      double radius, KDNode curr, List<Neighbor<Q>> withinRadius) {
+    if (curr == null) {
+      return;
+    }
+
+    double dist = weightedDist(loc, curr.data.getLocData(), weights);
+    for (int i = 0; dist < radius && i < curr.multiplicity(); i++) {
+      withinRadius.add(new Neighbor<>(curr.element(i), dist));
+    }
+
+    double currComponentDifference =
+        loc[curr.currDim] - curr.getComponent(curr.currDim);
+    double planeDist =
+        weights[curr.currDim] * Math.abs(currComponentDifference);
+    if (currComponentDifference < 0 || planeDist < radius) {
+      weightedFwrHelper(loc, weights, radius, curr.left, withinRadius);
+    }
+    if (currComponentDifference >= 0 || planeDist < radius) {
+      weightedFwrHelper(loc, weights, radius, curr.right, withinRadius);
+    }
+  }
+
+  private void checkWeighted(KDData origin, double[] weights) {
+    if (origin.getDims() != numDims) {
+      throw new IllegalArgumentException(
+          "Given datum doesn't have same number of dimensions as KDTree");
+    } else if (weights == null || weights.length != numDims) {
+      throw new IllegalArgumentException(
+          "Must have one weight per dimension");
+    }
+    for (double weight : weights) {
+      if (!(weight >= 0) || Double.isInfinite(weight)) {
+        throw new IllegalArgumentException(
+            "Weights must be finite and 0 or greater");
       }
     }
+  }
 
-    return bestGuesses;
+  private static double weightedDist(
+      double[] a, double[] b, double[] weights) {
+    double distanceSquared = 0;
+    for (int i = 0; i < a.length; i++) {
+      double diff = weights[i] * (a[i] - b[i]);
+      distanceSquared += diff * diff;
+    }
+    return Math.sqrt(distanceSquared);
   }
 
   /** Gets all elements within a given radius of a given point.
@@ -365,6 +840,12 @@ public final class KDTree<Q extends KDData> {
    * returns an empty list.
    */
   public <R extends KDData> List<Q> findWithinRadius(R origin, double radius) {
+    return items(withinRadiusWithDistances(origin, radius));
+  }
+
+  // findWithinRadius, keeping each result's distance, for callers merging
+  // results from several trees.
+  List<Neighbor<Q>> withinRadiusWithDistances(KDData origin, double radius) {
     if (isEmpty()) {
       return new ArrayList<>();
     }
@@ -377,24 +858,126 @@ public final class KDTree<Q extends KDData> {
       throw new IllegalArgumentException("Radius must be 0 or greater");
     }
 
-    else {
-      List<Q> withinRadius = fwrHelper(
-          new ArrayList<Q>(), origin, radius, root);
-      ClosestComparator<R, Q> comp = new ClosestComparator<>(origin);
-      Collections.sort(withinRadius, comp);
-      return withinRadius;
+    List<Neighbor<Q>> withinRadius = new ArrayList<>();
+    fwrHelper(origin, radius, root, (item, dist) -> {
+      withinRadius.add(new Neighbor<>(item, dist));
+      return true;
+    });
+    Collections.sort(withinRadius);
+    return withinRadius;
+  }
+
+  /** Visits all elements within a given radius of a given point, in no
+   * particular order. Unlike findWithinRadius, no list is built and nothing
+   * is sorted, and each element is passed along with its distance.
+   * @param origin The datum from which to find data within a given radius.
+   * Can be of a different type than Q, so long as the other type
+   * has the same dimension. If not, throws IllegalArgumentException.
+   * @param radius The euclidian radius within which to visit elements. If
+   * less than 0, throws IllegalArgumentException.
+   * @param visitor Called with each element within radius of origin and
+   * its distance from origin. The search stops as soon as it returns false.
+   */
+  public void forEachWithinRadius(
+      KDData origin, double radius, KDVisitor<? super Q> visitor) {
+    forEachWithinRadius(origin, radius, false, visitor);
+  }
+
+  /** Visits all elements within a given radius of a given point.
+   * @param origin The datum from which to find data within a given radius.
+   * Can be of a different type than Q, so long as the other type
+   * has the same dimension. If not, throws IllegalArgumentException.
+   * @param radius The euclidian radius within which to visit elements. If
+   * less than 0, throws IllegalArgumentException.
+   * @param sorted True to visit elements nearest first, which means finding
+   * all of them before visiting any. False to visit them in no particular
+   * order as they are found.
+   * @param visitor Called with each element within radius of origin and
+   * its distance from origin. The search stops as soon as it returns false.
+   */
+  public void forEachWithinRadius(KDData origin, double radius,
+      boolean sorted, KDVisitor<? super Q> visitor) {
+    if (isEmpty()) {
+      return;
+    } else if (origin.getDims() != numDims) {
+      throw new IllegalArgumentException(
+          "Given datum doesn't have same number of dimensions as KDTree");
+    } else if (radius < 0) {
+      throw new IllegalArgumentException("Radius must be 0 or greater");
+    }
+
+    if (!sorted) {
+      fwrHelper(origin, radius, root, visitor);
+    } else {
+      List<Neighbor<Q>> withinRadius = new ArrayList<>();
+      fwrHelper(origin, radius, root, (item, dist) -> {
+        withinRadius.add(new Neighbor<>(item, dist));
+        return true;
+      });
+      Collections.sort(withinRadius);
+      for (Neighbor<Q> neighbor : withinRadius) {
+        if (!visitor.visit(neighbor.item, neighbor.dist)) {
+          return;
+        }
+      }
     }
   }
 
-  private List<Q> fwrHelper(
-      List<Q> withinRadius, KDData origin, double radius, KDNode curr) {
+  /** Counts the elements within a given radius of a given point, without
+   * collecting them. Subtrees lying entirely within radius are counted
+   * whole from their sizes, and counting stops once limit is reached.
+   * @param origin The datum from which to count data within radius.
+   * Can be of a different type than Q, so long as the other type
+   * has the same dimension. If not, throws IllegalArgumentException.
+   * @param radius The euclidian radius within which to count elements. If
+   * less than 0, throws IllegalArgumentException.
+   * @param limit The most elements worth counting, such as a minimum
+   * cluster size. Use Integer.MAX_VALUE to count them all.
+   * @return The number of elements within radius of origin, or limit if
+   * that is smaller.
+   */
+  public int countWithinRadius(KDData origin, double radius, int limit) {
+    if (isEmpty()) {
+      return 0;
+    } else if (origin.getDims() != numDims) {
+      throw new IllegalArgumentException(
+          "Given datum doesn't have same number of dimensions as KDTree");
+    } else if (radius < 0) {
+      throw new IllegalArgumentException("Radius must be 0 or greater");
+    }
+
+    return Math.min(limit,
+        countHelper(origin.getLocData(), origin, radius, root, limit, 0));
+  }
 
-    if (curr == null) {
-      return withinRadius;
+  private int countHelper(double[] loc, KDData origin, double radius,
+      KDNode curr, int limit, int count) {
+    if (curr == null || count >= limit || curr.boxDistance(loc) >= radius) {
+      return count;
+    } else if (curr.farthestBoxDistance(loc) < radius) {
+      return count + curr.count;
     }
 
     if (origin.euclidianDist(curr.data) < radius) {
-      withinRadius.add(curr.data);
+      count += curr.multiplicity();
+    }
+    count = countHelper(loc, origin, radius, curr.left, limit, count);
+    return countHelper(loc, origin, radius, curr.right, limit, count);
+  }
+
+  // Returns false if visitor stopped the search.
+  private boolean fwrHelper(KDData origin, double radius, KDNode curr,
+      KDVisitor<? super Q> visitor) {
+
+    if (curr == null) {
+      return true;
+    }
+
+    double dist = origin.euclidianDist(curr.data);
+    for (int i = 0; dist < radius && i < curr.multiplicity(); i++) {
+      if (!visitor.visit(curr.element(i), dist)) {
+        return false;
+      }
     }
 
     double currComponentDifference = origin.getComponent(curr.currDim)
@@ -403,10 +986,14 @@ public final class KDTree<Q extends KDData> {
     // So we know where we looked if we have to search the other subtree
     boolean searchedLeft;
     if (currComponentDifference < 0) {
-      fwrHelper(withinRadius, origin, radius, curr.getLeft());
+      if (!fwrHelper(origin, radius, curr.getLeft(), visitor)) {
+        return false;
+      }
       searchedLeft = true;
     } else {
-      fwrHelper(withinRadius, origin, radius, curr.getRight());
+      if (!fwrHelper(origin, radius, curr.getRight(), visitor)) {
+        return false;
+      }
       searchedLeft = false;
     }
 
@@ -414,14 +1001,278 @@ public final class KDTree<Q extends KDData> {
     // (when |currComponentDifference| < radius)
     if (Math.abs(currComponentDifference) < radius) {
       if (searchedLeft) {
-        fwrHelper(withinRadius, origin, radius, curr.getRight());
+        return fwrHelper(origin, radius, curr.getRight(), visitor);
       } else {
+        return fwrHelper(origin, radius, curr.getLeft(), visitor);
+      }
+    }
 
-        fwrHelper(withinRadius, origin, radius, curr.getLeft());
+    return true;
+  }
+
+  /** Gets the k nearest neighbors to each of a batch of points.
+   * @param <R> The type of the origins. Must be a KDData with the same
+   * dimension as the KDTree.
+   * @param origins The data from which to find the nearest neighbors.
+   * @param k The number of nearest neighbors to find for each origin.
+   * @param order The order to run the queries in. Running them along a
+   * space filling curve means consecutive queries visit mostly the same
+   * nodes, which are then still in cache.
+   * @return For each origin, in the order given, the same list
+   * kNearestNeighbor would give.
+   */
+  public <R extends KDData> List<List<Q>> kNearestNeighbors(
+      List<R> origins, int k, QueryOrder order) {
+    List<List<Q>> results = new ArrayList<>(
+        Collections.nCopies(origins.size(), (List<Q>) null));
+    for (int i : SpaceFillingCurves.order(origins, order)) {
+      results.set(i, kNearestNeighbor(origins.get(i), k));
+    }
+    return results;
+  }
+
+  /** Gets all elements within a given radius of each of a batch of points.
+   * @param <R> The type of the origins. Must be a KDData with the same
+   * dimension as the KDTree.
+   * @param origins The data from which to find data within radius.
+   * @param radius The euclidian radius within which to give results.
+   * @param order The order to run the queries in. See kNearestNeighbors.
+   * @return For each origin, in the order given, the same list
+   * findWithinRadius would give.
+   */
+  public <R extends KDData> List<List<Q>> findWithinRadius(
+      List<R> origins, double radius, QueryOrder order) {
+    List<List<Q>> results = new ArrayList<>(
+        Collections.nCopies(origins.size(), (List<Q>) null));
+    for (int i : SpaceFillingCurves.order(origins, order)) {
+      results.set(i, findWithinRadius(origins.get(i), radius));
+    }
+    return results;
+  }
+
+  /** Finds the k nearest neighbors in this tree for every element of
+   * another tree. Both trees are traversed together, so whole groups of
+   * queries that are far from a group of elements are skipped at once, and
+   * the work is split across cores with the common ForkJoinPool.
+   * @param <R> The type of the queries. Must be a KDData with the same
+   * dimension as the KDTree.
+   * @param queries The tree whose elements to find nearest neighbors for.
+   * If it has a different number of dimensions than this tree, throws
+   * IllegalArgumentException.
+   * @param k The number of nearest neighbors to find for each query.
+   * @return A map from each element of queries to its k nearest datum in
+   * this KDTree, sorted by distance as in kNearestNeighbor. Equal queries
+   * share one entry. If this tree is empty, every query maps to an empty
+   * list.
+   */
+  public <R extends KDData> Map<R, List<Q>> knnJoin(KDTree<R> queries, int k) {
+    if (queries == null) {
+      throw new IllegalArgumentException("queries cannot be null");
+    } else if (k <= 0) {
+      throw new IllegalArgumentException(
+          "ERROR: k must be an integer greater than zero.");
+    }
+
+    Map<R, List<Q>> nearest = new HashMap<>();
+    if (queries.isEmpty()) {
+      return nearest;
+    } else if (isEmpty()) {
+      for (R query : queries.toList()) {
+        nearest.put(query, new ArrayList<>());
       }
+      return nearest;
+    } else if (queries.numDims != numDims) {
+      throw new IllegalArgumentException(
+          "Given tree doesn't have same number of dimensions as KDTree");
     }
 
-    return withinRadius;
+    JoinNode<R> joinRoot = new JoinNode<>(queries.root, k);
+    ForkJoinPool.commonPool().invoke(new JoinTask<>(joinRoot, root, true));
+    joinRoot.collect(nearest);
+    return nearest;
+  }
+
+  // Considers every pair of a query in a (or only a's own query if !aAll)
+  // and an element in b (or only b's own element if !bAll), skipping the
+  // pair entirely if b can't hold anything closer than a's current bound.
+  private <R extends KDData> void joinHelper(
+      JoinNode<R> a, boolean aAll, KDNode b, boolean bAll) {
+
+    if (a == null || b == null) {
+      return;
+    }
+
+    double bound = aAll ? a.bound : a.kthDistance();
+    if (aAll && bAll) {
+      if (b.boxDistance(a.node) >= bound) {
+        return;
+      }
+    } else if (aAll) {
+      if (a.node.boxDistance(b.data.getLocData()) >= bound) {
+        return;
+      }
+    } else if (bAll) {
+      if (b.boxDistance(a.loc) >= bound) {
+        return;
+      }
+    }
+
+    // More than k elements at one location can't all be among the nearest,
+    // and they all share one distance.
+    double dist = a.query.euclidianDist(b.data);
+    for (int i = 0; i < Math.min(b.multiplicity(), a.k); i++) {
+      a.offer(b.element(i), dist);
+    }
+
+    // a's own query against the rest of b, nearer subtree first so the
+    // farther one is more likely to be pruned.
+    if (bAll) {
+      if (b.left != null && b.right != null
+          && b.right.boxDistance(a.loc) < b.left.boxDistance(a.loc)) {
+        joinHelper(a, false, b.right, true);
+        joinHelper(a, false, b.left, true);
+      } else {
+        joinHelper(a, false, b.left, true);
+        joinHelper(a, false, b.right, true);
+      }
+    }
+
+    // The rest of a against b. Disjoint query subtrees can run in parallel
+    // since each only updates its own queries' neighbors.
+    if (aAll) {
+      if (a.node.count > PARALLEL_THRESHOLD) {
+        ForkJoinTask.invokeAll(
+            new JoinTask<>(a.left, b, bAll),
+            new JoinTask<>(a.right, b, bAll));
+      } else {
+        joinChild(a.left, b, bAll);
+        joinChild(a.right, b, bAll);
+      }
+      a.updateBound();
+    }
+  }
+
+  // Considers every query in child against b (or only b's own element
+  // if !bAll).
+  private <R extends KDData> void joinChild(
+      JoinNode<R> child, KDNode b, boolean bAll) {
+    joinHelper(child, true, b, false);
+    if (bAll) {
+      joinHelper(child, true, b.left, true);
+      joinHelper(child, true, b.right, true);
+    }
+  }
+
+  /** Finds every pair of elements in the tree within a given radius of each
+   * other. Each pair is reported exactly once, in no particular order, and
+   * is streamed to consumer as it is found rather than collected. The tree
+   * is traversed against itself, and large subtrees are searched in
+   * parallel on the common ForkJoinPool, so consumer may be called from
+   * several threads at once and must be thread safe.
+   * @param radius The euclidian radius within which to report pairs. If
+   * less than 0, throws IllegalArgumentException.
+   * @param consumer Called once for each pair within radius of each other.
+   */
+  public void forEachPairWithinRadius(
+      double radius, KDPairConsumer<? super Q> consumer) {
+    if (consumer == null) {
+      throw new IllegalArgumentException("consumer cannot be null");
+    } else if (radius < 0) {
+      throw new IllegalArgumentException("Radius must be 0 or greater");
+    }
+
+    if (!isEmpty()) {
+      ForkJoinPool.commonPool().invoke(
+          new SelfPairTask(root, radius, consumer));
+    }
+  }
+
+  // Reports every pair within radius where both elements are in node.
+  private void selfPairHelper(
+      KDNode node, double radius, KDPairConsumer<? super Q> consumer) {
+
+    if (node == null) {
+      return;
+    }
+
+    // Elements sharing node's location are all 0 apart.
+    for (int i = 0; radius > 0 && i < node.multiplicity(); i++) {
+      for (int j = i + 1; j < node.multiplicity(); j++) {
+        consumer.accept(node.element(i), node.element(j), 0);
+      }
+    }
+    pairHelper(node, false, node.left, true, radius, consumer);
+    pairHelper(node, false, node.right, true, radius, consumer);
+
+    if (node.count > PARALLEL_THRESHOLD) {
+      ForkJoinTask.invokeAll(
+          new SelfPairTask(node.left, radius, consumer),
+          new SelfPairTask(node.right, radius, consumer),
+          new CrossPairTask(node.left, node.right, true, radius, consumer));
+    } else {
+      selfPairHelper(node.left, radius, consumer);
+      selfPairHelper(node.right, radius, consumer);
+      crossPairChild(node.left, node.right, true, radius, consumer);
+    }
+  }
+
+  // Reports every pair within radius of an element in a (or only a's own
+  // element if !aAll) and an element in b (or only b's own element if
+  // !bAll). a and b must not overlap.
+  private void pairHelper(KDNode a, boolean aAll, KDNode b, boolean bAll,
+      double radius, KDPairConsumer<? super Q> consumer) {
+
+    if (a == null || b == null) {
+      return;
+    }
+
+    if (aAll && bAll) {
+      if (a.boxDistance(b) >= radius) {
+        return;
+      }
+    } else if (aAll) {
+      if (a.boxDistance(b.data.getLocData()) >= radius) {
+        return;
+      }
+    } else if (bAll) {
+      if (b.boxDistance(a.data.getLocData()) >= radius) {
+        return;
+      }
+    }
+
+    double dist = a.data.euclidianDist(b.data);
+    for (int i = 0; dist < radius && i < a.multiplicity(); i++) {
+      for (int j = 0; j < b.multiplicity(); j++) {
+        consumer.accept(a.element(i), b.element(j), dist);
+      }
+    }
+
+    if (bAll) {
+      pairHelper(a, false, b.left, true, radius, consumer);
+      pairHelper(a, false, b.right, true, radius, consumer);
+    }
+
+    if (aAll) {
+      if (a.count > PARALLEL_THRESHOLD) {
+        ForkJoinTask.invokeAll(
+            new CrossPairTask(a.left, b, bAll, radius, consumer),
+            new CrossPairTask(a.right, b, bAll, radius, consumer));
+      } else {
+        crossPairChild(a.left, b, bAll, radius, consumer);
+        crossPairChild(a.right, b, bAll, radius, consumer);
+      }
+    }
+  }
+
+  // Reports every pair within radius of an element in child and an element
+  // in b (or only b's own element if !bAll).
+  private void crossPairChild(KDNode child, KDNode b, boolean bAll,
+      double radius, KDPairConsumer<? super Q> consumer) {
+    pairHelper(child, true, b, false, radius, consumer);
+    if (bAll && b != null) {
+      pairHelper(child, true, b.left, true, radius, consumer);
+      pairHelper(child, true, b.right, true, radius, consumer);
+    }
   }
 
   @Override
@@ -453,6 +1304,31 @@ public final class KDTree<Q extends KDData> {
     return result;
   }
 
+  // Sorts neighbors nearest first, using their already computed distances,
+  // and strips the distances off.
+  static <T extends KDData> List<T> sortedItems(
+      List<Neighbor<T>> neighbors) {
+    return sortedItems(neighbors, neighbors.size());
+  }
+
+  // sortedItems, keeping only the nearest limit of them. Sorting lists of
+  // neighbors that were each already sorted, put end to end, merges them
+  // in about linear time.
+  static <T extends KDData> List<T> sortedItems(
+      List<Neighbor<T>> neighbors, int limit) {
+    Collections.sort(neighbors);
+    return items(neighbors.subList(0, Math.min(limit, neighbors.size())));
+  }
+
+  // Strips the distances off neighbors, keeping their order.
+  static <T extends KDData> List<T> items(List<Neighbor<T>> neighbors) {
+    List<T> items = new ArrayList<>(neighbors.size());
+    for (Neighbor<T> neighbor : neighbors) {
+      items.add(neighbor.item);
+    }
+    return items;
+  }
+
   private KDNode closest(KDData origin, KDNode a, KDNode b) {
     if (origin.euclidianDist(a.data) < origin.euclidianDist(b.data)) {
       return a;
@@ -461,12 +1337,326 @@ public final class KDTree<Q extends KDData> {
     }
   }
 
-  private List<Q> castObjects(Object[] l) {
-    ArrayList<Q> newList = new ArrayList<Q>();
-    for (Object o : l) {
-      newList.add((Q) (o));
+  /** An element found by a query along with its distance from the origin,
+   * so the distance doesn't have to be recomputed to sort results.
+   * @author samdunietz
+   *
+   * @param <T> The type of the element.
+   */
+  static final class Neighbor<T> implements Comparable<Neighbor<T>> {
+
+    final T item;
+    final double dist;
+
+    Neighbor(T item, double dist) {
+      this.item = item;
+      this.dist = dist;
+    }
+
+    @Override
+    public int compareTo(Neighbor<T> other) {
+      return Double.compare(dist, other.dist);
+    }
+  }
+
+  /** A list of elements along with their order when sorted on each
+   * dimension.
+   * @author samdunietz
+   *
+   * @param <T> The type of the elements.
+   */
+  private static final class Presorted<T extends KDData> {
+
+    private final List<T> items;
+    // orders[d] holds indices into items, sorted on dimension d.
+    private final int[][] orders;
+
+    private Presorted(List<T> items, int[][] orders) {
+      this.items = items;
+      this.orders = orders;
+    }
+
+    private static <T extends KDData> Presorted<T> sort(
+        List<T> items, int numDims) {
+      int n = items.size();
+      double[][] coords = new double[numDims][n];
+      for (int i = 0; i < n; i++) {
+        double[] loc = items.get(i).getLocData();
+        for (int dim = 0; dim < numDims; dim++) {
+          coords[dim][i] = loc[dim];
+        }
+      }
+
+      int[][] orders = new int[numDims][n];
+      int[] scratch = new int[n];
+      for (int dim = 0; dim < numDims; dim++) {
+        for (int i = 0; i < n; i++) {
+          orders[dim][i] = i;
+        }
+        sortIndices(orders[dim], coords[dim], scratch, 0, n);
+      }
+      return new Presorted<>(items, orders);
+    }
+
+    // Stable merge sort of order[lo, hi) by keys, ordered as by
+    // Double.compare, without boxing any indices.
+    private static void sortIndices(
+        int[] order, double[] keys, int[] scratch, int lo, int hi) {
+      if (hi - lo <= 16) {
+        for (int i = lo + 1; i < hi; i++) {
+          int index = order[i];
+          int j = i;
+          while (j > lo
+              && Double.compare(keys[order[j - 1]], keys[index]) > 0) {
+            order[j] = order[j - 1];
+            j--;
+          }
+          order[j] = index;
+        }
+        return;
+      }
+
+      int mid = (lo + hi) >>> 1;
+      sortIndices(order, keys, scratch, lo, mid);
+      sortIndices(order, keys, scratch, mid, hi);
+      if (Double.compare(keys[order[mid - 1]], keys[order[mid]]) <= 0) {
+        return;
+      }
+
+      System.arraycopy(order, lo, scratch, lo, hi - lo);
+      int i = lo;
+      int j = mid;
+      for (int k = lo; k < hi; k++) {
+        if (j >= hi || (i < mid
+            && Double.compare(keys[scratch[i]], keys[scratch[j]]) <= 0)) {
+          order[k] = scratch[i++];
+        } else {
+          order[k] = scratch[j++];
+        }
+      }
+    }
+
+    // Linear time merge of each dimension's order. b's indices are shifted
+    // to follow a's in the combined item list.
+    private static <T extends KDData> Presorted<T> merge(
+        Presorted<T> a, Presorted<T> b, int numDims) {
+      List<T> items = new ArrayList<>(a.items.size() + b.items.size());
+      items.addAll(a.items);
+      items.addAll(b.items);
+      int offset = a.items.size();
+
+      int[][] orders = new int[numDims][];
+      for (int dim = 0; dim < numDims; dim++) {
+        int[] aOrder = a.orders[dim];
+        int[] bOrder = b.orders[dim];
+        int[] order = new int[items.size()];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        double aValue = i < aOrder.length
+            ? a.items.get(aOrder[i]).getComponent(dim) : 0;
+        double bValue = j < bOrder.length
+            ? b.items.get(bOrder[j]).getComponent(dim) : 0;
+        while (i < aOrder.length && j < bOrder.length) {
+          if (Double.compare(aValue, bValue) <= 0) {
+            order[k++] = aOrder[i++];
+            if (i < aOrder.length) {
+              aValue = a.items.get(aOrder[i]).getComponent(dim);
+            }
+          } else {
+            order[k++] = bOrder[j++] + offset;
+            if (j < bOrder.length) {
+              bValue = b.items.get(bOrder[j]).getComponent(dim);
+            }
+          }
+        }
+        while (i < aOrder.length) {
+          order[k++] = aOrder[i++];
+        }
+        while (j < bOrder.length) {
+          order[k++] = bOrder[j++] + offset;
+        }
+        orders[dim] = order;
+      }
+      return new Presorted<>(items, orders);
+    }
+  }
+
+  /** A location, compared by its coordinates, for finding elements at
+   * exactly the same location.
+   * @author samdunietz
+   *
+   */
+  private static final class Location {
+
+    private final double[] loc;
+
+    private Location(double[] loc) {
+      this.loc = loc;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Location
+          && Arrays.equals(loc, ((Location) obj).loc);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(loc);
+    }
+  }
+
+  /** Per-query state for knnJoin, mirroring the query tree.
+   * @author samdunietz
+   *
+   * @param <R> The type of the queries.
+   */
+  private final class JoinNode<R extends KDData> {
+
+    private final R query;
+    private final double[] loc;
+    private final int k;
+    private final KDTree<R>.KDNode node;
+    private final MinMaxPriorityQueue<Neighbor<Q>> nearest;
+    private final JoinNode<R> left;
+    private final JoinNode<R> right;
+
+    // Largest kth-nearest distance of any query in this subtree. Only ever
+    // shrinks, so a stale value is still safe to prune with.
+    private double bound = Double.POSITIVE_INFINITY;
+
+    private JoinNode(KDTree<R>.KDNode node, int k) {
+      this.node = node;
+      this.k = k;
+      query = node.data;
+      loc = query.getLocData();
+      nearest = MinMaxPriorityQueue.maximumSize(k).create();
+      left = node.left == null ? null : new JoinNode<>(node.left, k);
+      right = node.right == null ? null : new JoinNode<>(node.right, k);
+    }
+
+    private double kthDistance() {
+      if (nearest.size() < k) {
+        return Double.POSITIVE_INFINITY;
+      } else {
+        return nearest.peekLast().dist;
+      }
+    }
+
+    // Adds item, dist away from query, if it is among the k nearest so far.
+    private void offer(Q item, double dist) {
+      if (dist < kthDistance()) {
+        nearest.add(new Neighbor<>(item, dist));
+      }
+    }
+
+    private void updateBound() {
+      double newBound = kthDistance();
+      if (left != null) {
+        newBound = Math.max(newBound, left.bound);
+      }
+      if (right != null) {
+        newBound = Math.max(newBound, right.bound);
+      }
+      bound = newBound;
+    }
+
+    private void collect(Map<R, List<Q>> results) {
+      List<Q> sorted = sortedItems(new ArrayList<>(nearest));
+      results.put(query, sorted);
+      // Queries at the same location have the same neighbors.
+      for (R duplicate : node.duplicates) {
+        results.put(duplicate, new ArrayList<>(sorted));
+      }
+      if (left != null) {
+        left.collect(results);
+      }
+      if (right != null) {
+        right.collect(results);
+      }
+    }
+  }
+
+  /** Fork/join task running the queries in one query subtree of knnJoin.
+   * @author samdunietz
+   *
+   * @param <R> The type of the queries.
+   */
+  private final class JoinTask<R extends KDData> extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinNode<R> queries;
+    private final KDNode refs;
+    private final boolean refsAll;
+
+    private JoinTask(JoinNode<R> queries, KDNode refs, boolean refsAll) {
+      this.queries = queries;
+      this.refs = refs;
+      this.refsAll = refsAll;
+    }
+
+    @Override
+    protected void compute() {
+      joinChild(queries, refs, refsAll);
+    }
+  }
+
+  /** Fork/join task for forEachPairWithinRadius, reporting the pairs
+   * within a single subtree.
+   * @author samdunietz
+   *
+   */
+  private final class SelfPairTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final KDNode node;
+    private final double radius;
+    private final KDPairConsumer<? super Q> consumer;
+
+    private SelfPairTask(KDNode node, double radius,
+        KDPairConsumer<? super Q> consumer) {
+      this.node = node;
+      this.radius = radius;
+      this.consumer = consumer;
+    }
+
+    @Override
+    protected void compute() {
+      selfPairHelper(node, radius, consumer);
+    }
+  }
+
+  /** Fork/join task for forEachPairWithinRadius, reporting the pairs
+   * between one subtree and another disjoint one.
+   * @author samdunietz
+   *
+   */
+  private final class CrossPairTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final KDNode child;
+    private final KDNode other;
+    private final boolean otherAll;
+    private final double radius;
+    private final KDPairConsumer<? super Q> consumer;
+
+    private CrossPairTask(KDNode child, KDNode other, boolean otherAll,
+        double radius, KDPairConsumer<? super Q> consumer) {
+      this.child = child;
+      this.other = other;
+      this.otherAll = otherAll;
+      this.radius = radius;
+      this.consumer = consumer;
+    }
+
+    @Override
+    protected void compute() {
+      crossPairChild(child, other, otherAll, radius, consumer);
     }
-    return newList;
   }
 
   /** Internal KDNode class, for nodes of KDTree.
@@ -476,19 +1666,57 @@ public final class KDTree<Q extends KDData> {
   private final class KDNode {
 
     private final Q data;
+    // The other elements at exactly the same location as data.
+    private final List<Q> duplicates;
     private final int currDim;
     private final KDNode left;
     private final KDNode right;
 
-    private KDNode(Q data, int currDim, KDNode left, KDNode right) {
+    // Number of elements in this subtree, and the corners of the smallest
+    // box containing all of them.
+    private final int count;
+    private final double[] min;
+    private final double[] max;
+
+    // Bits for every category in this subtree, or all bits if the tree
+    // doesn't index categories.
+    private final long categories;
+
+    private KDNode(Q data, List<Q> duplicates, int currDim, KDNode left,
+        KDNode right) {
       this.data = data;
+      this.duplicates = duplicates;
       this.currDim = currDim;
       this.left = left;
       this.right = right;
+
+      double[] loc = data.getLocData();
+      min = loc.clone();
+      max = loc.clone();
+      int childCount = 0;
+      long subtreeCategories = categoryOf == null
+          ? -1L
+          : categoryBit(categoryOf.apply(data));
+      for (int i = 0; categoryOf != null && i < duplicates.size(); i++) {
+        subtreeCategories |= categoryBit(categoryOf.apply(duplicates.get(i)));
+      }
+      for (KDNode child : Arrays.asList(left, right)) {
+        if (child != null) {
+          childCount += child.count;
+          subtreeCategories |= child.categories;
+          for (int i = 0; i < min.length; i++) {
+            min[i] = Math.min(min[i], child.min[i]);
+            max[i] = Math.max(max[i], child.max[i]);
+          }
+        }
+      }
+      count = multiplicity() + childCount;
+      categories = subtreeCategories;
     }
 
     private List<Q> toList() {
       List<Q> list = Lists.newArrayList(data);
+      list.addAll(duplicates);
       toListHelper(list, left);
       toListHelper(list, right);
       return list;
@@ -498,6 +1726,7 @@ public final class KDTree<Q extends KDData> {
     private void toListHelper(List<Q> list, KDNode node) {
       if (node != null) {
         list.add(node.data);
+        list.addAll(node.duplicates);
         toListHelper(list, node.left);
         toListHelper(list, node.right);
       }
@@ -507,6 +1736,16 @@ public final class KDTree<Q extends KDData> {
       return data.getComponent(dim);
     }
 
+    // Number of elements at this node's location.
+    private int multiplicity() {
+      return 1 + duplicates.size();
+    }
+
+    // Element i of those at this node's location, data being element 0.
+    private Q element(int i) {
+      return i == 0 ? data : duplicates.get(i - 1);
+    }
+
     private KDNode getLeft() {
       return left;
     }
@@ -516,15 +1755,23 @@ public final class KDTree<Q extends KDData> {
     }
 
     private int size() {
-      if (left == null && right == null) {
-        return 1;
-      } else if (left != null && right == null) {
-        return 1 + left.size();
-      } else if (left == null && right != null) {
-        return 1 + right.size();
-      } else {
-        return 1 + left.size() + right.size();
-      }
+      return count;
+    }
+
+    // Smallest possible distance from loc to any element in this subtree.
+    private double boxDistance(double[] loc) {
+      return DistanceKernels.boxDistance(min, max, loc);
+    }
+
+    // Largest possible distance from loc to any element in this subtree.
+    private double farthestBoxDistance(double[] loc) {
+      return DistanceKernels.farthestBoxDistance(min, max, loc);
+    }
+
+    // Smallest possible distance between any element in this subtree and
+    // any element in other.
+    private double boxDistance(KDTree<?>.KDNode other) {
+      return DistanceKernels.boxDistance(other.min, other.max, min, max);
     }
 
     private int depth() {
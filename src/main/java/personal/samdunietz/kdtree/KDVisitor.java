@@ -0,0 +1,19 @@
+package personal.samdunietz.kdtree;
+
+/** Callback for queries that hand results over one at a time instead of
+ * collecting them into a list, such as KDTree.forEachWithinRadius.
+ * @author samdunietz
+ *
+ * @param <Q> The type of KDData being visited.
+ */
+@FunctionalInterface
+public interface KDVisitor<Q extends KDData> {
+
+  /** Visits one result.
+   * @param item The result.
+   * @param dist The euclidian distance from the query's origin to item.
+   * @return True to keep searching, or false to stop the search without
+   * visiting any more results.
+   */
+  boolean visit(Q item, double dist);
+}
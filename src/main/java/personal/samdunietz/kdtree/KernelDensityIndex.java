@@ -0,0 +1,235 @@
+package personal.samdunietz.kdtree;
+
+import java.util.Collection;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.ToDoubleFunction;
+
+/** Index for kernel density estimates and weighted sums around a point.
+ *
+ * The index mirrors a KDTree of the elements, and every subtree keeps a
+ * summary of its elements: their total weight and their weighted
+ * centroid, alongside the bounding box the tree already keeps. Queries use
+ * a subtree's summary instead of its elements wherever that is accurate
+ * enough, in the manner of Barnes-Hut, so distant parts of the data cost
+ * one step each.
+ * @author samdunietz
+ *
+ * @param <Q> The type of KDData in the index.
+ */
+public final class KernelDensityIndex<Q extends KDData> {
+
+  private final KDTree<Q> tree;
+  private final SNode root;
+
+  /** Constructs a KernelDensityIndex where every element has weight 1.
+   * @param data The elements to index. All must have the same number of
+   * dimensions.
+   */
+  public KernelDensityIndex(Collection<Q> data) {
+    this(data, item -> 1);
+  }
+
+  /** Constructs a KernelDensityIndex.
+   * @param data The elements to index. All must have the same number of
+   * dimensions.
+   * @param weightOf Gets an element's weight. If any weight is negative or
+   * not finite, throws IllegalArgumentException.
+   */
+  public KernelDensityIndex(
+      Collection<Q> data, ToDoubleFunction<? super Q> weightOf) {
+    if (weightOf == null) {
+      throw new IllegalArgumentException("weightOf cannot be null");
+    }
+
+    tree = new KDTree<>(data);
+    root = tree.isEmpty() ? null : mirror(tree, weightOf);
+  }
+
+  private SNode mirror(
+      KDTree<Q> subtree, ToDoubleFunction<? super Q> weightOf) {
+    KDTree<Q> left = subtree.getLeft();
+    KDTree<Q> right = subtree.getRight();
+    // Elements at the same location share a node, and their weights add.
+    double weight = 0;
+    for (Q item : subtree.getRootElements()) {
+      double itemWeight = weightOf.applyAsDouble(item);
+      if (!(itemWeight >= 0) || Double.isInfinite(itemWeight)) {
+        throw new IllegalArgumentException(
+            "Weights must be finite and 0 or greater");
+      }
+      weight += itemWeight;
+    }
+    return new SNode(subtree.getRoot().getLocData(), weight,
+        subtree.boxMin(), subtree.boxMax(),
+        left == null ? null : mirror(left, weightOf),
+        right == null ? null : mirror(right, weightOf));
+  }
+
+  /** Gets the tree of the indexed elements, for ordinary queries.
+   * @return The tree of the indexed elements.
+   */
+  public KDTree<Q> getTree() {
+    return tree;
+  }
+
+  /** Gets the total weight of all elements.
+   * @return The total weight of all elements.
+   */
+  public double totalWeight() {
+    return root == null ? 0 : root.weightSum;
+  }
+
+  /** Estimates the kernel density at a given point: the sum over every
+   * element of its weight times the kernel of its distance from origin.
+   *
+   * A subtree is summed as its total weight times the kernel of the
+   * distance to its centroid whenever the kernel varies by no more than
+   * tolerance across the subtree's bounding box, so the estimate is off by
+   * at most tolerance times the total weight.
+   * @param origin The point to estimate the density at. Must have the same
+   * number of dimensions as the index, or throws IllegalArgumentException.
+   * @param kernel Gives the kernel's value at a distance. Must be
+   * nonnegative and never increase with distance, like a gaussian.
+   * @param tolerance How much the kernel may vary across a subtree that is
+   * summed from its summary. 0 sums exactly, apart from subtrees the kernel
+   * is flat across. If less than 0, throws IllegalArgumentException.
+   * @return The estimated density at origin. If the index is empty,
+   * returns 0.
+   */
+  public double kernelDensity(
+      KDData origin, DoubleUnaryOperator kernel, double tolerance) {
+    if (tolerance < 0) {
+      throw new IllegalArgumentException("tolerance must be 0 or greater");
+    } else if (root == null) {
+      return 0;
+    }
+    checkDims(origin);
+
+    return densityHelper(origin.getLocData(), root, kernel, tolerance);
+  }
+
+  private double densityHelper(double[] loc, SNode curr,
+      DoubleUnaryOperator kernel, double tolerance) {
+    if (curr == null) {
+      return 0;
+    }
+
+    // Every element's kernel value is between these, and so is the
+    // centroid's, since the centroid is inside the bounding box.
+    double nearest = kernel.applyAsDouble(curr.boxDistance(loc));
+    double farthest = kernel.applyAsDouble(curr.farthestBoxDistance(loc));
+    if (nearest - farthest <= tolerance) {
+      return curr.weightSum
+          * kernel.applyAsDouble(distance(loc, curr.centroid));
+    }
+
+    return curr.weight * kernel.applyAsDouble(distance(loc, curr.loc))
+        + densityHelper(loc, curr.left, kernel, tolerance)
+        + densityHelper(loc, curr.right, kernel, tolerance);
+  }
+
+  /** Gets the total weight of the elements within a given radius of a
+   * given point. Subtrees entirely within radius are added whole from
+   * their summaries.
+   * @param origin The point to sum weights around. Must have the same
+   * number of dimensions as the index, or throws IllegalArgumentException.
+   * @param radius The euclidian radius within which to sum weights. If less
+   * than 0, throws IllegalArgumentException.
+   * @return The total weight of the elements within radius of origin.
+   */
+  public double weightWithinRadius(KDData origin, double radius) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("Radius must be 0 or greater");
+    } else if (root == null) {
+      return 0;
+    }
+    checkDims(origin);
+
+    return weightHelper(origin.getLocData(), radius, root);
+  }
+
+  private double weightHelper(double[] loc, double radius, SNode curr) {
+    if (curr == null || curr.boxDistance(loc) >= radius) {
+      return 0;
+    } else if (curr.farthestBoxDistance(loc) < radius) {
+      return curr.weightSum;
+    }
+
+    double weight = distance(loc, curr.loc) < radius ? curr.weight : 0;
+    return weight + weightHelper(loc, radius, curr.left)
+        + weightHelper(loc, radius, curr.right);
+  }
+
+  private void checkDims(KDData origin) {
+    if (origin.getDims() != tree.getNumDims()) {
+      throw new IllegalArgumentException(
+          "Given datum doesn't have same number of dimensions as KDTree");
+    }
+  }
+
+  private static double distance(double[] a, double[] b) {
+    return Math.sqrt(DistanceKernels.squaredDistance(a, b));
+  }
+
+  /** Node of the mirrored tree, with a summary of its subtree.
+   * @author samdunietz
+   *
+   */
+  private static final class SNode {
+
+    private final double[] loc;
+    private final double weight;
+    private final SNode left;
+    private final SNode right;
+
+    private final double weightSum;
+    private final double[] centroid;
+
+    // The bounding box of the mirrored subtree, shared with its KDNode.
+    private final double[] min;
+    private final double[] max;
+
+    private SNode(double[] loc, double weight, double[] min, double[] max,
+        SNode left, SNode right) {
+      this.loc = loc;
+      this.weight = weight;
+      this.min = min;
+      this.max = max;
+      this.left = left;
+      this.right = right;
+
+      double subtreeWeight = weight;
+      double[] weighted = new double[loc.length];
+      for (int i = 0; i < loc.length; i++) {
+        weighted[i] = weight * loc[i];
+      }
+      for (SNode child : new SNode[]{left, right}) {
+        if (child != null) {
+          subtreeWeight += child.weightSum;
+          for (int i = 0; i < loc.length; i++) {
+            weighted[i] += child.weightSum * child.centroid[i];
+          }
+        }
+      }
+      weightSum = subtreeWeight;
+
+      // With no weight at all, any point in the box will do.
+      centroid = weighted;
+      for (int i = 0; i < loc.length; i++) {
+        centroid[i] = subtreeWeight > 0
+            ? weighted[i] / subtreeWeight
+            : loc[i];
+      }
+    }
+
+    // Smallest possible distance from loc to any element in this subtree.
+    private double boxDistance(double[] loc) {
+      return DistanceKernels.boxDistance(min, max, loc);
+    }
+
+    // Largest possible distance from loc to any element in this subtree.
+    private double farthestBoxDistance(double[] loc) {
+      return DistanceKernels.farthestBoxDistance(min, max, loc);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package personal.samdunietz.kdtree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** KDTransport to partitions in this process, for running a distributed
+ * index on one machine, such as in tests. Each request runs on an
+ * Executor, so partitions answer concurrently as they would over a
+ * network.
+ * @author samdunietz
+ *
+ * @param <Q> The type of KDData in the partitions.
+ */
+public final class LoopbackTransport<Q extends KDData>
+    implements KDTransport<Q> {
+
+  private final List<KDPartition<Q>> partitions;
+  private final Executor executor;
+  private final AtomicLong requestCount = new AtomicLong();
+
+  /** Constructs a LoopbackTransport with a partition for each non-empty
+   * shard of a forest, answering on the common ForkJoinPool.
+   * @param forest The forest whose shards to serve.
+   */
+  public LoopbackTransport(KDForest<Q> forest) {
+    this(partitionsOf(forest), ForkJoinPool.commonPool());
+  }
+
+  /** Constructs a LoopbackTransport.
+   * @param partitions The partitions to serve. All must have the same
+   * number of dimensions, or throws IllegalArgumentException.
+   * @param executor Runs each request.
+   */
+  public LoopbackTransport(
+      List<KDPartition<Q>> partitions, Executor executor) {
+    if (partitions == null || executor == null) {
+      throw new IllegalArgumentException(
+          "partitions and executor cannot be null");
+    } else if (partitions.stream()
+        .mapToInt(partition -> partition.getTree().getNumDims())
+        .distinct().count() > 1) {
+      throw new IllegalArgumentException(
+          "All datum must have same number of dimensions");
+    }
+
+    this.partitions = new ArrayList<>(partitions);
+    this.executor = executor;
+  }
+
+  private static <Q extends KDData> List<KDPartition<Q>> partitionsOf(
+      KDForest<Q> forest) {
+    List<KDPartition<Q>> partitions = new ArrayList<>();
+    for (int i = 0; i < forest.getNumShards(); i++) {
+      if (!forest.getShard(i).isEmpty()) {
+        partitions.add(new KDPartition<>(forest.getShard(i)));
+      }
+    }
+    return partitions;
+  }
+
+  /** Gets the number of requests sent to any partition so far.
+   * @return The number of requests sent.
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  @Override
+  public int numPartitions() {
+    return partitions.size();
+  }
+
+  @Override
+  public double[] getMin(int partition) {
+    return partitions.get(partition).getMin();
+  }
+
+  @Override
+  public double[] getMax(int partition) {
+    return partitions.get(partition).getMax();
+  }
+
+  @Override
+  public CompletableFuture<List<Q>> kNearestWithinRadius(
+      int partition, KDData origin, int k, double radius) {
+    KDTree<Q> tree = partitions.get(partition).getTree();
+    requestCount.incrementAndGet();
+    return CompletableFuture.supplyAsync(
+        () -> tree.kNearestWithinRadius(origin, k, radius), executor);
+  }
+
+  @Override
+  public CompletableFuture<List<Q>> findWithinRadius(
+      int partition, KDData origin, double radius) {
+    KDTree<Q> tree = partitions.get(partition).getTree();
+    requestCount.incrementAndGet();
+    return CompletableFuture.supplyAsync(
+        () -> tree.findWithinRadius(origin, radius), executor);
+  }
+}
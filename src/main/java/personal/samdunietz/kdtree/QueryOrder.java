@@ -0,0 +1,21 @@
+package personal.samdunietz.kdtree;
+
+/** The order in which a batch of queries is run. Whichever order is used,
+ * batch results are returned in the order the queries were given.
+ * @author samdunietz
+ *
+ */
+public enum QueryOrder {
+
+  /** Run queries in the order they were given. */
+  ARRIVAL,
+
+  /** Run queries sorted along a Z-order (Morton) curve, so that queries
+   * near each other in space run one after another. Cheap to compute. */
+  Z_ORDER,
+
+  /** Run queries sorted along a Hilbert curve. Like Z_ORDER, but
+   * consecutive queries are never far apart, at a somewhat higher cost to
+   * compute the order. */
+  HILBERT
+}
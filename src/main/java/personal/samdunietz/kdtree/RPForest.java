@@ -0,0 +1,433 @@
+package personal.samdunietz.kdtree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.google.common.collect.MinMaxPriorityQueue;
+
+/** Approximate nearest neighbor index for high dimensional data, such as
+ * embeddings, where splitting on one coordinate at a time stops pruning.
+ *
+ * Each tree splits its elements in half at the median of their projections
+ * onto a direction: a random one, or the principal axis of the elements
+ * being split. Small groups of elements are kept together in leaves. The
+ * ensemble builds several such trees with different randomness, and a
+ * query searches all of them at once, most promising branch first, until
+ * it has looked at a budget of candidates. Candidates are merged across
+ * trees, so an element is measured only once however many trees find it.
+ *
+ * Distance to a split's far side is at least the origin's distance from
+ * the split along its direction, so branches that can't hold anything
+ * nearer than the kth best so far are skipped, and with a budget of size()
+ * results are exact.
+ * @author samdunietz
+ *
+ * @param <Q> The type of KDData in the forest.
+ */
+public final class RPForest<Q extends KDData> {
+
+  private final List<Q> items;
+  private final int numDims;
+  // Every element's coordinates, one after another.
+  private final double[] coords;
+  private final int leafSize;
+  private final List<Tree> trees;
+
+  // Most elements sampled to estimate a principal axis.
+  private static final int AXIS_SAMPLE = 256;
+  private static final int POWER_ITERATIONS = 16;
+
+  /** How each tree picks the direction to split elements along.
+   * @author samdunietz
+   *
+   */
+  public enum SplitRule {
+
+    /** A uniformly random direction. Cheap to build, and trees built with
+     * different seeds differ a lot, which suits large ensembles. */
+    RANDOM_PROJECTION,
+
+    /** The principal axis of a random sample of the elements being split,
+     * found by power iteration. The elements are spread out most along
+     * it, so each split separates them best, at a higher build cost. */
+    PRINCIPAL_AXIS
+  }
+
+  /** Constructs an RPForest.
+   * @param data All the data for the forest. All datum must have the same,
+   * nonzero, number of dimensions, or throws IllegalArgumentException.
+   * @param numTrees The number of trees in the ensemble. If below 1,
+   * throws IllegalArgumentException.
+   * @param leafSize The most elements kept together in a leaf. If below 1,
+   * throws IllegalArgumentException.
+   * @param rule How to pick the direction each split is along.
+   * @param seed Seed for the randomness in every tree, so the same
+   * arguments always build the same forest.
+   */
+  public RPForest(Collection<Q> data, int numTrees, int leafSize,
+      SplitRule rule, long seed) {
+    if (data == null) {
+      throw new IllegalArgumentException("data cannot be null");
+    } else if (rule == null) {
+      throw new IllegalArgumentException("rule cannot be null");
+    } else if (numTrees < 1) {
+      throw new IllegalArgumentException("numTrees must be at least 1");
+    } else if (leafSize < 1) {
+      throw new IllegalArgumentException("leafSize must be at least 1");
+    }
+
+    items = new ArrayList<>(data);
+    numDims = items.isEmpty() ? -1 : items.get(0).getDims();
+    if (numDims == 0) {
+      throw new IllegalArgumentException("Datum cannot have 0 dimensions");
+    }
+    coords = new double[items.size() * Math.max(numDims, 0)];
+    for (int i = 0; i < items.size(); i++) {
+      double[] loc = items.get(i).getLocData();
+      if (loc.length != numDims) {
+        throw new IllegalArgumentException(
+            "All datum must have same number of dimensions");
+      }
+      System.arraycopy(loc, 0, coords, i * numDims, numDims);
+    }
+    this.leafSize = leafSize;
+
+    trees = IntStream.range(0, numTrees).parallel()
+        .mapToObj(t -> new Tree(rule, new Random(seed + t)))
+        .collect(Collectors.toList());
+  }
+
+  /** Gets the number of elements in the forest.
+   * @return The number of elements in the forest.
+   */
+  public int size() {
+    return items.size();
+  }
+
+  /** Determines if the forest is empty.
+   * @return True if the forest has no elements, and false otherwise.
+   */
+  public boolean isEmpty() {
+    return items.isEmpty();
+  }
+
+  /** Gets the number of trees in the ensemble.
+   * @return The number of trees in the ensemble.
+   */
+  public int getNumTrees() {
+    return trees.size();
+  }
+
+  /** Gets approximately the k nearest neighbors to a given point, looking
+   * at about as many candidates as there are in one leaf of each tree.
+   * @param <R> The type of the origin. Must be a KDData with the same
+   * dimension as the forest.
+   * @param origin The datum from which to find the nearest neighbors. If
+   * it has a different number of dimensions than the forest, throws
+   * IllegalArgumentException.
+   * @param k The number of nearest neighbors to find. If below 1, throws
+   * IllegalArgumentException.
+   * @return Up to k datum near origin, nearest first. If the forest is
+   * empty, returns an empty list.
+   */
+  public <R extends KDData> List<Q> kNearestNeighbor(R origin, int k) {
+    return kNearestNeighbor(origin, k, trees.size() * leafSize);
+  }
+
+  /** Gets approximately the k nearest neighbors to a given point.
+   * @param <R> The type of the origin. Must be a KDData with the same
+   * dimension as the forest.
+   * @param origin The datum from which to find the nearest neighbors. If
+   * it has a different number of dimensions than the forest, throws
+   * IllegalArgumentException.
+   * @param k The number of nearest neighbors to find. If below 1, throws
+   * IllegalArgumentException.
+   * @param maxCandidates About how many distinct elements to measure
+   * before stopping. More gives better results more slowly, and size()
+   * gives exact results. At least k are always measured.
+   * @return Up to k datum near origin, nearest first. If the forest is
+   * empty, returns an empty list.
+   */
+  public <R extends KDData> List<Q> kNearestNeighbor(
+      R origin, int k, int maxCandidates) {
+    if (k <= 0) {
+      throw new IllegalArgumentException(
+          "ERROR: k must be an integer greater than zero.");
+    } else if (isEmpty()) {
+      return new ArrayList<>();
+    } else if (origin.getDims() != numDims) {
+      throw new IllegalArgumentException(
+          "Given datum doesn't have same number of dimensions as KDTree");
+    }
+
+    double[] loc = origin.getLocData();
+    int budget = Math.max(k, maxCandidates);
+    MinMaxPriorityQueue<Candidate> best =
+        MinMaxPriorityQueue.maximumSize(k).create();
+    Set<Integer> seen = new HashSet<>();
+
+    // Branches of every tree, least far from origin first.
+    PriorityQueue<Branch> branches = new PriorityQueue<>();
+    for (Tree tree : trees) {
+      branches.add(new Branch(tree, tree.root, 0));
+    }
+    while (!branches.isEmpty() && seen.size() < budget) {
+      Branch branch = branches.poll();
+      if (best.size() == k && branch.gap >= best.peekLast().dist) {
+        break;
+      }
+
+      // Descend to a leaf, queueing each far side passed along the way.
+      Node node = branch.node;
+      while (node.direction != null) {
+        double offset = dot(node.direction, loc, 0) - node.threshold;
+        branches.add(new Branch(branch.tree,
+            offset < 0 ? node.right : node.left,
+            Math.max(branch.gap, Math.abs(offset))));
+        node = offset < 0 ? node.left : node.right;
+      }
+
+      for (int i = node.start; i < node.end; i++) {
+        int index = branch.tree.order[i];
+        if (seen.add(index)) {
+          double dist = Math.sqrt(DistanceKernels.squaredDistance(
+              loc, 0, coords, index * numDims, numDims));
+          if (best.size() < k || dist < best.peekLast().dist) {
+            best.add(new Candidate(index, dist));
+          }
+        }
+      }
+    }
+
+    List<Candidate> sorted = new ArrayList<>(best);
+    sorted.sort(null);
+    List<Q> results = new ArrayList<>(sorted.size());
+    for (Candidate candidate : sorted) {
+      results.add(items.get(candidate.index));
+    }
+    return results;
+  }
+
+  private static double dot(double[] direction, double[] src, int offset) {
+    double sum = 0;
+    for (int i = 0; i < direction.length; i++) {
+      sum += direction[i] * src[offset + i];
+    }
+    return sum;
+  }
+
+  /** One tree of the ensemble.
+   * @author samdunietz
+   *
+   */
+  private final class Tree {
+
+    // Indices of the elements, with each leaf's elements in a range.
+    private final int[] order;
+    private final Node root;
+
+    private Tree(SplitRule rule, Random random) {
+      order = new int[items.size()];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      root = build(rule, random, new double[order.length], 0, order.length);
+    }
+
+    // Builds the subtree over order[lo, hi). projections is scratch space
+    // indexed by element.
+    private Node build(
+        SplitRule rule, Random random, double[] projections, int lo, int hi) {
+      if (hi - lo <= leafSize) {
+        return new Node(lo, hi);
+      }
+
+      double[] direction = rule == SplitRule.RANDOM_PROJECTION
+          ? randomDirection(random)
+          : principalAxis(random, lo, hi);
+      for (int i = lo; i < hi; i++) {
+        projections[order[i]] =
+            dot(direction, coords, order[i] * numDims);
+      }
+
+      // Splitting at the median position rather than value keeps even
+      // elements with equal projections balanced.
+      int middle = lo + (hi - lo) / 2;
+      select(projections, lo, hi - 1, middle);
+      double threshold = projections[order[middle]];
+      return new Node(direction, threshold,
+          build(rule, random, projections, lo, middle),
+          build(rule, random, projections, middle, hi));
+    }
+
+    private double[] randomDirection(Random random) {
+      double[] direction = new double[numDims];
+      for (int i = 0; i < numDims; i++) {
+        direction[i] = random.nextGaussian();
+      }
+      return normalize(direction, random);
+    }
+
+    // Power iteration on the covariance of a random sample of order[lo, hi),
+    // without ever forming the covariance matrix.
+    private double[] principalAxis(Random random, int lo, int hi) {
+      int sampleSize = Math.min(AXIS_SAMPLE, hi - lo);
+      int[] sample = new int[sampleSize];
+      double[] mean = new double[numDims];
+      for (int s = 0; s < sampleSize; s++) {
+        sample[s] = order[lo + random.nextInt(hi - lo)] * numDims;
+        for (int i = 0; i < numDims; i++) {
+          mean[i] += coords[sample[s] + i] / sampleSize;
+        }
+      }
+
+      double[] axis = randomDirection(random);
+      for (int iteration = 0; iteration < POWER_ITERATIONS; iteration++) {
+        double[] next = new double[numDims];
+        for (int offset : sample) {
+          double projection = 0;
+          for (int i = 0; i < numDims; i++) {
+            projection += (coords[offset + i] - mean[i]) * axis[i];
+          }
+          for (int i = 0; i < numDims; i++) {
+            next[i] += projection * (coords[offset + i] - mean[i]);
+          }
+        }
+        axis = normalize(next, random);
+      }
+      return axis;
+    }
+
+    // Scales direction to length 1. Any direction will do if it's all 0,
+    // as it is when every sampled element is the same.
+    private double[] normalize(double[] direction, Random random) {
+      double length = Math.sqrt(dot(direction, direction, 0));
+      if (!(length > 0)) {
+        return randomDirection(random);
+      }
+      for (int i = 0; i < numDims; i++) {
+        direction[i] /= length;
+      }
+      return direction;
+    }
+
+    // Quickselect on order[lo, hi] so that order[nth] holds the element
+    // that would be there if sorted by projection.
+    private void select(double[] projections, int lo, int hi, int nth) {
+      while (hi > lo) {
+        double pivot = projections[order[(lo + hi) >>> 1]];
+        int i = lo;
+        int j = hi;
+        while (i <= j) {
+          while (projections[order[i]] < pivot) {
+            i++;
+          }
+          while (projections[order[j]] > pivot) {
+            j--;
+          }
+          if (i <= j) {
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+            i++;
+            j--;
+          }
+        }
+        if (nth <= j) {
+          hi = j;
+        } else if (nth >= i) {
+          lo = i;
+        } else {
+          return;
+        }
+      }
+    }
+  }
+
+  /** Node of a tree: either a split along a direction, or a leaf holding a
+   * range of the tree's order.
+   * @author samdunietz
+   *
+   */
+  private static final class Node {
+
+    // Unit vector to project onto, or null for a leaf. Every element on
+    // the left projects to at most threshold, and on the right at least.
+    private final double[] direction;
+    private final double threshold;
+    private final Node left;
+    private final Node right;
+
+    private final int start;
+    private final int end;
+
+    private Node(double[] direction, double threshold, Node left,
+        Node right) {
+      this.direction = direction;
+      this.threshold = threshold;
+      this.left = left;
+      this.right = right;
+      start = 0;
+      end = 0;
+    }
+
+    private Node(int start, int end) {
+      direction = null;
+      threshold = 0;
+      left = null;
+      right = null;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  /** A subtree waiting to be searched, with a lower bound on the distance
+   * from the origin to anything in it.
+   * @author samdunietz
+   *
+   */
+  private final class Branch implements Comparable<Branch> {
+
+    private final Tree tree;
+    private final Node node;
+    private final double gap;
+
+    private Branch(Tree tree, Node node, double gap) {
+      this.tree = tree;
+      this.node = node;
+      this.gap = gap;
+    }
+
+    @Override
+    public int compareTo(Branch other) {
+      return Double.compare(gap, other.gap);
+    }
+  }
+
+  /** An element measured by a query, with its distance from the origin.
+   * @author samdunietz
+   *
+   */
+  private static final class Candidate implements Comparable<Candidate> {
+
+    private final int index;
+    private final double dist;
+
+    private Candidate(int index, double dist) {
+      this.index = index;
+      this.dist = dist;
+    }
+
+    @Override
+    public int compareTo(Candidate other) {
+      return Double.compare(dist, other.dist);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package personal.samdunietz.kdtree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/** Index for reverse k nearest neighbor queries: given a point, finding
+ * every element that would count that point among its own k nearest
+ * neighbors.
+ *
+ * Each element's distance to its kth nearest other element is computed
+ * once, in parallel, when the index is built. A point is then a reverse
+ * neighbor of an element exactly when it lies within that distance. The
+ * index mirrors a KDTree of the elements and stores, for every subtree,
+ * its bounding box and the largest of those distances inside it, so
+ * subtrees where no element could reach the query are skipped whole.
+ * @author samdunietz
+ *
+ * @param <Q> The type of KDData in the index.
+ */
+public final class ReverseKNNIndex<Q extends KDData> {
+
+  private final int k;
+  private final KDTree<Q> tree;
+  private final RNode<Q> root;
+
+  /** Constructs a ReverseKNNIndex.
+   * @param data The elements to index. All must have the same number of
+   * dimensions.
+   * @param k How many nearest neighbors each element keeps. If below 1,
+   * throws IllegalArgumentException.
+   */
+  public ReverseKNNIndex(Collection<Q> data, int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException(
+          "ERROR: k must be an integer greater than zero.");
+    }
+
+    this.k = k;
+    tree = new KDTree<>(data);
+    List<RNode<Q>> nodes = new ArrayList<>(tree.size());
+    root = tree.isEmpty() ? null : mirror(tree, nodes);
+
+    // Each element is its own nearest neighbor, so ask for one more.
+    IntStream.range(0, nodes.size()).parallel().forEach(i -> {
+      RNode<Q> node = nodes.get(i);
+      List<Q> nearest = tree.kNearestNeighbor(node.item, k + 1);
+      node.radius = nearest.size() <= k
+          ? Double.POSITIVE_INFINITY
+          : nearest.get(k).euclidianDist(node.item);
+    });
+    if (root != null) {
+      root.summarize();
+    }
+  }
+
+  // Copies the structure of tree, adding each node to nodes.
+  private RNode<Q> mirror(KDTree<Q> subtree, List<RNode<Q>> nodes) {
+    KDTree<Q> left = subtree.getLeft();
+    KDTree<Q> right = subtree.getRight();
+    RNode<Q> node = new RNode<>(subtree.getRootElements(),
+        subtree.boxMin(), subtree.boxMax(),
+        left == null ? null : mirror(left, nodes),
+        right == null ? null : mirror(right, nodes));
+    nodes.add(node);
+    return node;
+  }
+
+  /** Gets the number of nearest neighbors each element keeps.
+   * @return k.
+   */
+  public int getK() {
+    return k;
+  }
+
+  /** Gets the tree of the indexed elements, for ordinary queries.
+   * @return The tree of the indexed elements.
+   */
+  public KDTree<Q> getTree() {
+    return tree;
+  }
+
+  /** Gets every element that would count a given point among its k
+   * nearest neighbors, meaning the point is no farther from the element
+   * than the element's kth nearest other element is.
+   * @param origin The point to find reverse nearest neighbors of. Must have
+   * the same number of dimensions as the index, or throws
+   * IllegalArgumentException.
+   * @return Every element that has origin among its k nearest neighbors,
+   * nearest to origin first. If the index is empty, returns an empty list.
+   */
+  public List<Q> reverseKNearest(KDData origin) {
+    List<Q> results = new ArrayList<>();
+    if (root == null) {
+      return results;
+    } else if (origin.getDims() != tree.getNumDims()) {
+      throw new IllegalArgumentException(
+          "Given datum doesn't have same number of dimensions as KDTree");
+    }
+
+    reverseHelper(origin.getLocData(), origin, root, results);
+    results.sort(new ClosestComparator<>(origin));
+    return results;
+  }
+
+  private void reverseHelper(
+      double[] loc, KDData origin, RNode<Q> curr, List<Q> results) {
+    if (curr == null || curr.boxDistance(loc) > curr.maxRadius) {
+      return;
+    }
+
+    if (curr.item.euclidianDist(origin) <= curr.radius) {
+      results.addAll(curr.items);
+    }
+    reverseHelper(loc, origin, curr.left, results);
+    reverseHelper(loc, origin, curr.right, results);
+  }
+
+  /** Node of the mirrored tree, with kth neighbor distances.
+   * @author samdunietz
+   *
+   * @param <T> The type of KDData in the node.
+   */
+  private static final class RNode<T extends KDData> {
+
+    // Every element at this node's location, which all share one radius.
+    private final List<T> items;
+    private final T item;
+    private final RNode<T> left;
+    private final RNode<T> right;
+
+    // Distance from item to its kth nearest other element, and the largest
+    // such distance in this subtree.
+    private double radius;
+    private double maxRadius;
+
+    // The bounding box of the mirrored subtree, shared with its KDNode.
+    private final double[] min;
+    private final double[] max;
+
+    private RNode(List<T> items, double[] min, double[] max, RNode<T> left,
+        RNode<T> right) {
+      this.items = items;
+      item = items.get(0);
+      this.min = min;
+      this.max = max;
+      this.left = left;
+      this.right = right;
+    }
+
+    // Fills in maxRadius once every radius is known.
+    private double summarize() {
+      maxRadius = radius;
+      if (left != null) {
+        maxRadius = Math.max(maxRadius, left.summarize());
+      }
+      if (right != null) {
+        maxRadius = Math.max(maxRadius, right.summarize());
+      }
+      return maxRadius;
+    }
+
+    private double boxDistance(double[] loc) {
+      return DistanceKernels.boxDistance(min, max, loc);
+    }
+  }
+}
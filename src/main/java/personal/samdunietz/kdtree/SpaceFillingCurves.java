@@ -0,0 +1,130 @@
+package personal.samdunietz.kdtree;
+
+import java.util.Arrays;
+import java.util.List;
+
+/** Sorts points along space filling curves, for running batches of queries
+ * in an order where consecutive queries touch the same parts of a tree.
+ * @author samdunietz
+ *
+ */
+final class SpaceFillingCurves {
+
+  // Curve keys are packed into a long, so at most this many bits total.
+  private static final int KEY_BITS = 63;
+  private static final int MAX_BITS_PER_DIM = 31;
+
+  private SpaceFillingCurves() {
+  }
+
+  /** Gets the order to visit points in.
+   * @param points The points to order. All must have the same number of
+   * dimensions.
+   * @param order The curve to order the points along.
+   * @return The indices of points, in the order they should be visited.
+   */
+  static int[] order(List<? extends KDData> points, QueryOrder order) {
+    int n = points.size();
+    int[] indices = new int[n];
+    for (int i = 0; i < n; i++) {
+      indices[i] = i;
+    }
+    if (order == QueryOrder.ARRIVAL || n < 2) {
+      return indices;
+    }
+
+    double[][] locs = new double[n][];
+    for (int i = 0; i < n; i++) {
+      locs[i] = points.get(i).getLocData();
+    }
+    int dims = locs[0].length;
+
+    // Only as many dimensions as fit in a key at one bit each take part.
+    int bits = Math.max(1, Math.min(MAX_BITS_PER_DIM, KEY_BITS / dims));
+    int keyDims = Math.min(dims, KEY_BITS / bits);
+
+    double[] min = new double[keyDims];
+    double[] max = new double[keyDims];
+    Arrays.fill(min, Double.POSITIVE_INFINITY);
+    Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    for (double[] loc : locs) {
+      for (int d = 0; d < keyDims; d++) {
+        min[d] = Math.min(min[d], loc[d]);
+        max[d] = Math.max(max[d], loc[d]);
+      }
+    }
+
+    long cells = (1L << bits) - 1;
+    long[] keys = new long[n];
+    long[] cell = new long[keyDims];
+    for (int i = 0; i < n; i++) {
+      for (int d = 0; d < keyDims; d++) {
+        double extent = max[d] - min[d];
+        cell[d] = extent == 0 ? 0
+            : (long) ((locs[i][d] - min[d]) / extent * cells);
+      }
+      if (order == QueryOrder.HILBERT) {
+        hilbertTranspose(cell, bits);
+      }
+      keys[i] = interleave(cell, bits);
+    }
+
+    Integer[] boxed = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      boxed[i] = i;
+    }
+    Arrays.sort(boxed, (a, b) -> Long.compare(keys[a], keys[b]));
+    for (int i = 0; i < n; i++) {
+      indices[i] = boxed[i];
+    }
+    return indices;
+  }
+
+  // Interleaves the low bits of each coordinate, most significant bit
+  // first, with coordinate 0 highest within each bit.
+  private static long interleave(long[] cell, int bits) {
+    long key = 0;
+    for (int b = bits - 1; b >= 0; b--) {
+      for (long c : cell) {
+        key = (key << 1) | ((c >>> b) & 1);
+      }
+    }
+    return key;
+  }
+
+  // Converts cell in place to the "transposed" form of its Hilbert index,
+  // so that interleaving it gives the index itself. From J. Skilling,
+  // "Programming the Hilbert curve", AIP Conf. Proc. 707 (2004).
+  private static void hilbertTranspose(long[] cell, int bits) {
+    int n = cell.length;
+    long m = 1L << (bits - 1);
+
+    // Inverse undo
+    for (long q = m; q > 1; q >>= 1) {
+      long p = q - 1;
+      for (int i = 0; i < n; i++) {
+        if ((cell[i] & q) != 0) {
+          cell[0] ^= p;
+        } else {
+          long t = (cell[0] ^ cell[i]) & p;
+          cell[0] ^= t;
+          cell[i] ^= t;
+        }
+      }
+    }
+
+    // Gray encode
+    for (int i = 1; i < n; i++) {
+      cell[i] ^= cell[i - 1];
+    }
+    long t = 0;
+    for (long q = m; q > 1; q >>= 1) {
+      if ((cell[n - 1] & q) != 0) {
+        t ^= q - 1;
+      }
+    }
+    for (int i = 0; i < n; i++) {
+      cell[i] ^= t;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.DoubleKDTree;
+import personal.samdunietz.kdtree.KDTree;
+
+/** Fails if queries start allocating more than they should, by measuring
+ * the bytes the test thread allocates over many queries. Skipped on JVMs
+ * that can't measure per thread allocation.
+ */
+public class AllocationTest {
+
+  private static final int SIZE = 100000;
+  private static final int QUERIES = 20000;
+  private static final int K = 10;
+
+  private com.sun.management.ThreadMXBean threads;
+  private List<Point> points;
+  private List<Point> origins;
+
+  @Before
+  public void setUp() {
+    java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    threads = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    points = TestData.uniform(SIZE, 2, 1);
+    origins = TestData.uniform(QUERIES, 2, 2);
+  }
+
+  // Average bytes allocated per run of query, after warming it up so it is
+  // measured compiled.
+  private double bytesPerQuery(QueryRunner query) {
+    for (int i = 0; i < QUERIES; i++) {
+      query.run(i);
+    }
+    long threadId = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < QUERIES; i++) {
+      query.run(i);
+    }
+    return (double) (threads.getThreadAllocatedBytes(threadId) - before)
+        / QUERIES;
+  }
+
+  private void assertBudget(String name, double bytes, double budget) {
+    assertTrue(name + " allocated " + bytes + " bytes per query, budget is "
+        + budget, bytes <= budget);
+  }
+
+  @Test
+  public void doubleKDTreeAllocatesNothing() {
+    for (DoubleKDTree.Layout layout : DoubleKDTree.Layout.values()) {
+      double[] flat = new double[SIZE * 2];
+      for (int i = 0; i < SIZE; i++) {
+        System.arraycopy(points.get(i).getLocData(), 0, flat, 2 * i, 2);
+      }
+      DoubleKDTree tree = new DoubleKDTree(flat, 2, null, layout);
+      int[] ids = new int[100];
+      double[] dists = new double[100];
+
+      assertBudget(layout + " nearestNeighbor", bytesPerQuery(i ->
+          tree.nearestNeighbor(origins.get(i).getLocData())), 1);
+      assertBudget(layout + " kNearestNeighbor", bytesPerQuery(i ->
+          tree.kNearestNeighbor(origins.get(i).getLocData(), K, ids, dists)),
+          1);
+      assertBudget(layout + " findWithinRadius", bytesPerQuery(i ->
+          tree.findWithinRadius(origins.get(i).getLocData(), 0.5, ids, dists)),
+          1);
+    }
+  }
+
+  @Test
+  public void kdTreeQueriesStayWithinBudget() {
+    KDTree<Point> tree = new KDTree<>(points);
+
+    assertBudget("nearestNeighbor",
+        bytesPerQuery(i -> tree.nearestNeighbor(origins.get(i))), 1);
+    assertBudget("countWithinRadius", bytesPerQuery(i ->
+        tree.countWithinRadius(origins.get(i), 0.5, Integer.MAX_VALUE)), 1);
+    assertBudget("forEachWithinRadius", bytesPerQuery(i ->
+        tree.forEachWithinRadius(origins.get(i), 0.5, (item, dist) -> true)),
+        1);
+
+    // These allocate their results, a queue and a Neighbor per candidate
+    // that makes it into the queue, but nothing per node visited. They
+    // measure about 1100 and 400 bytes; a new object per node visited
+    // would add several hundred more.
+    assertBudget("kNearestNeighbor", bytesPerQuery(i ->
+        tree.kNearestNeighbor(origins.get(i), K)), 1500);
+    assertBudget("findWithinRadius", bytesPerQuery(i ->
+        tree.findWithinRadius(origins.get(i), 0.5)), 600);
+  }
+
+  /** A query to measure, given which origin to use. */
+  private interface QueryRunner {
+    void run(int i);
+  }
+}
@@ -0,0 +1,154 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.DBSCAN;
+import personal.samdunietz.kdtree.KDTree;
+
+public class DBSCANTest {
+
+  private final Random r = new Random();
+
+  // A few dense blobs plus scattered noise.
+  private List<LatLng> clusteredLatLngs(int perBlob, int noise) {
+    List<LatLng> locs = new ArrayList<>();
+    for (int blob = 0; blob < 5; blob++) {
+      double lat = r.nextDouble() * 80;
+      double lng = r.nextDouble() * 80;
+      for (int i = 0; i < perBlob; i++) {
+        locs.add(new LatLng(
+            lat + r.nextGaussian(), lng + r.nextGaussian()));
+      }
+    }
+    for (int i = 0; i < noise; i++) {
+      locs.add(new LatLng(r.nextDouble() * 90, r.nextDouble() * 90));
+    }
+    return locs;
+  }
+
+  private int[] bruteCluster(List<LatLng> locs, double eps, int minPoints) {
+    int n = locs.size();
+    boolean[] core = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      int count = 0;
+      for (LatLng other : locs) {
+        if (locs.get(i).euclidianDist(other) < eps) {
+          count++;
+        }
+      }
+      core[i] = count >= minPoints;
+    }
+
+    int[] labels = new int[n];
+    Arrays.fill(labels, DBSCAN.NOISE);
+    int numClusters = 0;
+    for (int start = 0; start < n; start++) {
+      if (!core[start] || labels[start] != DBSCAN.NOISE) {
+        continue;
+      }
+      Deque<Integer> toVisit = new ArrayDeque<>();
+      toVisit.add(start);
+      labels[start] = numClusters;
+      while (!toVisit.isEmpty()) {
+        int curr = toVisit.poll();
+        for (int j = 0; j < n; j++) {
+          if (core[j] && labels[j] == DBSCAN.NOISE
+              && locs.get(curr).euclidianDist(locs.get(j)) < eps) {
+            labels[j] = numClusters;
+            toVisit.add(j);
+          }
+        }
+      }
+      numClusters++;
+    }
+
+    for (int i = 0; i < n; i++) {
+      if (!core[i]) {
+        double nearestDist = eps;
+        for (int j = 0; j < n; j++) {
+          double dist = locs.get(i).euclidianDist(locs.get(j));
+          if (core[j] && dist < nearestDist) {
+            nearestDist = dist;
+            labels[i] = labels[j];
+          }
+        }
+      }
+    }
+    return relabel(labels);
+  }
+
+  // Numbers clusters in the order their first point appears.
+  private int[] relabel(int[] labels) {
+    int[] relabeled = new int[labels.length];
+    int[] mapping = new int[labels.length];
+    Arrays.fill(mapping, DBSCAN.NOISE);
+    int next = 0;
+    for (int i = 0; i < labels.length; i++) {
+      if (labels[i] == DBSCAN.NOISE) {
+        relabeled[i] = DBSCAN.NOISE;
+      } else {
+        if (mapping[labels[i]] == DBSCAN.NOISE) {
+          mapping[labels[i]] = next++;
+        }
+        relabeled[i] = mapping[labels[i]];
+      }
+    }
+    return relabeled;
+  }
+
+  @Test
+  public void matchesBruteForce() {
+    List<LatLng> locs = clusteredLatLngs(300, 300);
+    for (double eps : new double[]{0.3, 0.8, 2.0}) {
+      for (int minPoints : new int[]{1, 4, 10}) {
+        assertArrayEquals(DBSCAN.cluster(locs, eps, minPoints),
+            bruteCluster(locs, eps, minPoints));
+      }
+    }
+  }
+
+  @Test
+  public void countWithinRadius() {
+    List<LatLng> locs = clusteredLatLngs(500, 500);
+    KDTree<LatLng> kdt = new KDTree<>(locs);
+    for (int i = 0; i < 50; i++) {
+      LatLng origin = locs.get(r.nextInt(locs.size()));
+      for (double radius : new double[]{0.0, 0.5, 3.0, 500.0}) {
+        int expected =
+            KDTreeTestUtils.findWithinRadius(locs, origin, radius).size();
+        assertEquals(kdt.countWithinRadius(origin, radius, Integer.MAX_VALUE),
+            expected);
+        assertEquals(kdt.countWithinRadius(origin, radius, 7),
+            Math.min(7, expected));
+      }
+    }
+  }
+
+  @Test
+  public void edgeCases() {
+    assertEquals(DBSCAN.cluster(new ArrayList<LatLng>(), 1.0, 3).length, 0);
+
+    List<LatLng> far = Arrays.asList(
+        new LatLng(0.0, 0.0), new LatLng(50.0, 50.0));
+    assertArrayEquals(DBSCAN.cluster(far, 1.0, 2),
+        new int[]{DBSCAN.NOISE, DBSCAN.NOISE});
+    assertArrayEquals(DBSCAN.cluster(far, 1.0, 1), new int[]{0, 1});
+
+    try {
+      DBSCAN.cluster(far, -1.0, 2);
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
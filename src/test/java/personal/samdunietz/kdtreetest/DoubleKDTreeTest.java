@@ -0,0 +1,114 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.DoubleKDTree;
+import personal.samdunietz.kdtree.DoubleKDTree.Layout;
+
+public class DoubleKDTreeTest {
+
+  private final Random r = new Random();
+
+  private double[][] randPoints(int n, int dims) {
+    double[][] points = new double[n][dims];
+    for (double[] point : points) {
+      for (int d = 0; d < dims; d++) {
+        point[d] = r.nextDouble() * 100;
+      }
+    }
+    return points;
+  }
+
+  private double dist(double[] a, double[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += (a[i] - b[i]) * (a[i] - b[i]);
+    }
+    return Math.sqrt(sum);
+  }
+
+  // Indices of points sorted by distance from origin.
+  private int[] byDistance(double[][] points, double[] origin) {
+    return IntStream.range(0, points.length).boxed()
+        .sorted(Comparator.comparingDouble(i -> dist(points[i], origin)))
+        .mapToInt(Integer::intValue)
+        .toArray();
+  }
+
+  @Test
+  public void emptyTree() {
+    DoubleKDTree tree = new DoubleKDTree(new double[0][], null);
+    assertEquals(tree.size(), 0);
+    assertEquals(tree.kNearestNeighbor(
+        new double[]{1.0}, 3, new int[3], new double[3]), 0);
+    try {
+      tree.nearestNeighbor(new double[]{1.0});
+      fail();
+    } catch (NoSuchElementException e) { }
+  }
+
+  @Test
+  public void queriesMatchBruteForce() {
+    for (int dims : new int[]{1, 2, 3, 4, 7, 64}) {
+      for (int n : new int[]{1, 2, 7, 100, 2000}) {
+        double[][] points = randPoints(n, dims);
+        for (Layout layout : Layout.values()) {
+          queriesMatchBruteForce(
+              points, new DoubleKDTree(points, null, layout));
+        }
+      }
+    }
+  }
+
+  private void queriesMatchBruteForce(double[][] points, DoubleKDTree tree) {
+    int n = points.length;
+    int dims = tree.getNumDims();
+
+    int k = 10;
+    int[] ids = new int[k];
+    double[] dists = new double[k];
+    int[] big = new int[n];
+    double[] bigDists = new double[n];
+    for (double[] origin : randPoints(20, dims)) {
+      int[] expected = byDistance(points, origin);
+      assertEquals(tree.nearestNeighbor(origin), expected[0]);
+
+      int found = tree.kNearestNeighbor(origin, k, ids, dists);
+      assertEquals(found, Math.min(k, n));
+      assertArrayEquals(Arrays.copyOf(ids, found),
+          Arrays.copyOf(expected, found));
+      assertEquals(dists[0], dist(points[expected[0]], origin), 1e-9);
+
+      double radius = 30.0;
+      int[] within = Arrays.stream(expected)
+          .filter(i -> dist(points[i], origin) < radius)
+          .toArray();
+      int count = tree.findWithinRadius(origin, radius, big, bigDists);
+      assertEquals(count, within.length);
+      assertArrayEquals(Arrays.copyOf(big, count), within);
+    }
+  }
+
+  @Test
+  public void flatInputWithIds() {
+    double[] flat = {0, 0, 5, 5, 10, 10, 1, 1};
+    int[] ids = {40, 41, 42, 43};
+    DoubleKDTree tree = new DoubleKDTree(flat, 2, ids);
+    assertEquals(tree.nearestNeighbor(new double[]{6, 6}), 41);
+
+    int[] out = new int[2];
+    double[] dists = new double[2];
+    assertEquals(tree.findWithinRadius(
+        new double[]{0, 0}, 100, out, dists), 4);
+  }
+}
@@ -0,0 +1,183 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import personal.samdunietz.kdtree.DiskKDTree;
+import personal.samdunietz.kdtree.DoubleKDTree;
+import personal.samdunietz.kdtree.ExternalKDTreeBuilder;
+
+public class ExternalKDTreeBuilderTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Random r = new Random();
+
+  private double[][] randPoints(int n, int numDims) {
+    double[][] points = new double[n][numDims];
+    for (double[] point : points) {
+      for (int dim = 0; dim < numDims; dim++) {
+        point[dim] = r.nextDouble() * 100;
+      }
+    }
+    return points;
+  }
+
+  private Path writeBinary(double[][] points) throws IOException {
+    Path input = folder.newFile().toPath();
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(input)))) {
+      for (int i = 0; i < points.length; i++) {
+        out.writeLong(i);
+        for (double component : points[i]) {
+          out.writeDouble(component);
+        }
+      }
+    }
+    return input;
+  }
+
+  // Queries on the disk tree should match a DoubleKDTree of the same points.
+  private void checkMatches(DiskKDTree disk, double[][] points, int numDims) {
+    DoubleKDTree memory = new DoubleKDTree(points, null);
+    int k = 10;
+    long[] diskIds = new long[k];
+    double[] diskDists = new double[k];
+    int[] ids = new int[k];
+    double[] dists = new double[k];
+    long[] diskRadiusIds = new long[points.length];
+    double[] diskRadiusDists = new double[points.length];
+    int[] radiusIds = new int[points.length];
+    double[] radiusDists = new double[points.length];
+
+    for (double[] origin : randPoints(50, numDims)) {
+      assertEquals(disk.kNearestNeighbor(origin, k, diskIds, diskDists),
+          memory.kNearestNeighbor(origin, k, ids, dists));
+      assertArrayEquals(diskDists, dists, 0);
+      assertEquals(disk.nearestNeighbor(origin), ids[0]);
+
+      long count = disk.findWithinRadius(
+          origin, 20, diskRadiusIds, diskRadiusDists);
+      assertEquals(count,
+          memory.findWithinRadius(origin, 20, radiusIds, radiusDists));
+      for (int i = 0; i < count; i++) {
+        assertEquals(diskRadiusIds[i], radiusIds[i]);
+      }
+    }
+  }
+
+  @Test
+  public void buildsFromBinaryBeyondBudget() throws IOException {
+    for (int numDims : new int[]{1, 2, 3}) {
+      double[][] points = randPoints(20000, numDims);
+      Path output = folder.newFile().toPath();
+      // Room for only about 1000 points at a time.
+      ExternalKDTreeBuilder builder = new ExternalKDTreeBuilder(
+          numDims, 1000 * (8 * (numDims + 1) + 4), folder.getRoot().toPath());
+      assertEquals(builder.buildFromBinary(writeBinary(points), output), 20000);
+
+      try (DiskKDTree disk = new DiskKDTree(output)) {
+        assertEquals(disk.size(), 20000);
+        assertEquals(disk.getNumDims(), numDims);
+        checkMatches(disk, points, numDims);
+      }
+    }
+  }
+
+  @Test
+  public void buildsFromCsv() throws IOException {
+    double[][] points = randPoints(5000, 2);
+    Path input = folder.newFile().toPath();
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(input))) {
+      for (int i = 0; i < points.length; i++) {
+        out.println(i + "," + points[i][0] + "," + points[i][1]);
+      }
+      out.println();
+    }
+
+    Path output = folder.newFile().toPath();
+    ExternalKDTreeBuilder builder =
+        new ExternalKDTreeBuilder(2, 1 << 12, folder.getRoot().toPath());
+    assertEquals(builder.buildFromCsv(input, output), 5000);
+    try (DiskKDTree disk = new DiskKDTree(output)) {
+      checkMatches(disk, points, 2);
+    }
+
+    // Only the input, output and the two files above should be left.
+    assertEquals(folder.getRoot().list().length, 2);
+  }
+
+  @Test
+  public void duplicatesAndEmpty() throws IOException {
+    double[][] points = new double[5000][];
+    for (int i = 0; i < points.length; i++) {
+      points[i] = new double[]{1.0, 2.0};
+    }
+    Path output = folder.newFile().toPath();
+    new ExternalKDTreeBuilder(2, 1 << 12, folder.getRoot().toPath())
+        .buildFromBinary(writeBinary(points), output);
+    try (DiskKDTree disk = new DiskKDTree(output)) {
+      long[] ids = new long[5000];
+      double[] dists = new double[5000];
+      assertEquals(disk.findWithinRadius(new double[]{1.0, 2.5}, 1, ids,
+          dists), 5000);
+      assertEquals(disk.kNearestNeighbor(new double[]{0, 0}, 3, ids, dists), 3);
+    }
+
+    Path emptyOutput = folder.newFile().toPath();
+    new ExternalKDTreeBuilder(2, 1 << 12, folder.getRoot().toPath())
+        .buildFromBinary(writeBinary(new double[0][]), emptyOutput);
+    try (DiskKDTree disk = new DiskKDTree(emptyOutput)) {
+      assertEquals(disk.size(), 0);
+      assertEquals(disk.kNearestNeighbor(
+          new double[]{0, 0}, 3, new long[3], new double[3]), 0);
+    }
+
+    try {
+      new DiskKDTree(writeBinary(points));
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void rejectsNonFinite() throws IOException {
+    double[][] points = randPoints(5000, 2);
+    points[4000][1] = Double.NaN;
+    // Both a budget that fits every point and one that has to split.
+    for (long budget : new long[]{1 << 20, 1 << 12}) {
+      try {
+        new ExternalKDTreeBuilder(2, budget, folder.getRoot().toPath())
+            .buildFromBinary(writeBinary(points), folder.newFile().toPath());
+        fail();
+      } catch (IllegalArgumentException e) {
+      }
+    }
+
+    Path input = folder.newFile().toPath();
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(input))) {
+      out.println("0,1.0,2.0");
+      out.println("1,Infinity,2.0");
+    }
+    try {
+      new ExternalKDTreeBuilder(2, 1 << 12, folder.getRoot().toPath())
+          .buildFromCsv(input, folder.newFile().toPath());
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.GeoIndex;
+import personal.samdunietz.kdtree.GeoUnit;
+
+import com.google.common.collect.Lists;
+
+public class GeoIndexTest {
+
+  private final Random r = new Random();
+
+  private double haversine(LatLng a, LatLng b, GeoUnit unit) {
+    double dLat = Math.toRadians(b.getLat() - a.getLat());
+    double dLng = Math.toRadians(b.getLng() - a.getLng());
+    double h = Math.pow(Math.sin(dLat / 2), 2)
+        + Math.cos(Math.toRadians(a.getLat()))
+        * Math.cos(Math.toRadians(b.getLat()))
+        * Math.pow(Math.sin(dLng / 2), 2);
+    return 2 * unit.getEarthRadius() * Math.asin(Math.sqrt(h));
+  }
+
+  private List<LatLng> randGlobe(int n) {
+    List<LatLng> locs = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      double lat = Math.toDegrees(Math.asin(2 * r.nextDouble() - 1));
+      locs.add(new LatLng(lat, r.nextDouble() * 360 - 180));
+    }
+    return locs;
+  }
+
+  private GeoIndex<LatLng> index(List<LatLng> locs) {
+    return new GeoIndex<>(locs, LatLng::getLat, LatLng::getLng);
+  }
+
+  @Test
+  public void matchesGreatCircleDistance() {
+    List<LatLng> locs = randGlobe(2000);
+    GeoIndex<LatLng> index = index(locs);
+
+    for (LatLng origin : randGlobe(30)) {
+      Comparator<LatLng> byDistance = Comparator.comparingDouble(
+          loc -> haversine(origin, loc, GeoUnit.KILOMETERS));
+      List<LatLng> expected = locs.stream()
+          .sorted(byDistance)
+          .limit(5)
+          .collect(Collectors.toList());
+      assertEquals(index.kNearestNeighbor(
+          origin.getLat(), origin.getLng(), 5), expected);
+
+      double km = 800;
+      List<LatLng> within = locs.stream()
+          .filter(loc -> haversine(origin, loc, GeoUnit.KILOMETERS) < km)
+          .sorted(byDistance)
+          .collect(Collectors.toList());
+      assertEquals(index.findWithinDistance(
+          origin.getLat(), origin.getLng(), km, GeoUnit.KILOMETERS), within);
+    }
+  }
+
+  @Test
+  public void antimeridianAndPoles() {
+    LatLng east = new LatLng(10.0, 179.9);
+    LatLng west = new LatLng(10.0, -179.9);
+    LatLng farther = new LatLng(10.0, 178.0);
+    LatLng pole1 = new LatLng(89.9, 0.0);
+    LatLng pole2 = new LatLng(89.9, 180.0);
+    GeoIndex<LatLng> index =
+        index(Lists.newArrayList(east, west, farther, pole1, pole2));
+
+    assertEquals(index.nearestNeighbor(10.0, -179.8), west);
+    assertEquals(index.kNearestNeighbor(10.0, -179.8, 2),
+        Lists.newArrayList(west, east));
+    assertEquals(index.kNearestNeighbor(89.9, 90.0, 2).size(), 2);
+    assertEquals(
+        index.findWithinDistance(89.9, 0.0, 25, GeoUnit.KILOMETERS),
+        Lists.newArrayList(pole1, pole2));
+
+    assertEquals(GeoIndex.distance(0, 0, 0, 180, GeoUnit.KILOMETERS),
+        Math.PI * GeoUnit.KILOMETERS.getEarthRadius(), 1e-6);
+    assertEquals(index.findWithinDistance(0, 0, 30000, GeoUnit.MILES).size(),
+        5);
+  }
+}
@@ -0,0 +1,170 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.KDAsyncExecutor;
+import personal.samdunietz.kdtree.KDTree;
+
+public class KDAsyncExecutorTest {
+
+  private final Random r = new Random();
+
+  private List<LatLng> randLatLngs(int k) {
+    List<LatLng> locs = new ArrayList<>();
+    for (int i = 0; i < k; i++) {
+      locs.add(new LatLng(r.nextDouble() * 90, r.nextDouble() * 90));
+    }
+    return locs;
+  }
+
+  @Test
+  public void resultsMatchSynchronousQueries() throws Exception {
+    List<LatLng> locs = randLatLngs(2000);
+    KDTree<LatLng> tree = new KDTree<>(locs);
+    List<LatLng> origins = randLatLngs(500);
+    List<CompletableFuture<List<LatLng>>> futures = new ArrayList<>();
+
+    try (KDAsyncExecutor<LatLng> executor =
+        new KDAsyncExecutor<>(tree, 64, 2, 2)) {
+      for (int i = 0; i < origins.size(); i++) {
+        futures.add(executor.kNearestAsync(origins.get(i), 1 + i % 3));
+      }
+      for (int i = 0; i < origins.size(); i++) {
+        assertEquals(futures.get(i).get(),
+            tree.kNearestNeighbor(origins.get(i), 1 + i % 3));
+      }
+
+      assertEquals(executor.getBatchedQueryCount(), 500);
+      assertTrue(executor.getBatchCount() >= 500 / 64);
+      assertTrue(executor.getLargestBatchSize() <= 64);
+      assertTrue(executor.getMeanBatchSize() > 1);
+      assertEquals(executor.getQueueDepth(), 0);
+    }
+  }
+
+  @Test
+  public void closeFinishesQueuedQueries() throws Exception {
+    KDTree<LatLng> tree = new KDTree<>(randLatLngs(100));
+    KDAsyncExecutor<LatLng> executor = new KDAsyncExecutor<>(tree, 8, 0, 1);
+    List<CompletableFuture<List<LatLng>>> futures = new ArrayList<>();
+    for (LatLng origin : randLatLngs(100)) {
+      futures.add(executor.kNearestAsync(origin, 2));
+    }
+    executor.close();
+    for (CompletableFuture<List<LatLng>> future : futures) {
+      assertTrue(future.isDone());
+      assertEquals(future.get().size(), 2);
+    }
+
+    try {
+      executor.kNearestAsync(new LatLng(1.0, 1.0), 2);
+      fail();
+    } catch (IllegalStateException e) {
+    }
+  }
+
+  @Test
+  public void errorsCompleteFutures() throws Exception {
+    KDTree<Point> tree = new KDTree<>(TestData.uniform(100, 2, 1));
+    Point broken = new Point(1.0, 1.0) {
+      @Override
+      public double[] getLocData() {
+        throw new AssertionError("broken");
+      }
+    };
+    try (KDAsyncExecutor<Point> executor =
+        new KDAsyncExecutor<>(tree, 8, 0, 1)) {
+      try {
+        executor.kNearestAsync(broken, 2).get();
+        fail();
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof AssertionError);
+      }
+      assertEquals(
+          executor.kNearestAsync(new Point(1.0, 1.0), 2).get().size(), 2);
+    }
+  }
+
+  @Test
+  public void interruptedDispatcherFailsQueuedFutures() throws Exception {
+    KDTree<Point> tree = new KDTree<>(TestData.uniform(100, 2, 2));
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Point slow = new Point(1.0, 1.0) {
+      @Override
+      public double[] getLocData() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return super.getLocData();
+      }
+    };
+
+    try (KDAsyncExecutor<Point> executor =
+        new KDAsyncExecutor<>(tree, 1, 0, 1)) {
+      // The only worker is busy, so the rest wait for the dispatcher.
+      CompletableFuture<List<Point>> running = executor.kNearestAsync(slow, 2);
+      started.await();
+      List<CompletableFuture<List<Point>>> queued = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        queued.add(executor.kNearestAsync(new Point(2.0, 2.0), 2));
+      }
+
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (thread.getName().equals("kdtree-batch-dispatcher")) {
+          thread.interrupt();
+          thread.join();
+        }
+      }
+      for (CompletableFuture<List<Point>> future : queued) {
+        try {
+          future.get();
+          fail();
+        } catch (CancellationException e) {
+        }
+      }
+      try {
+        executor.kNearestAsync(new Point(2.0, 2.0), 2);
+        fail();
+      } catch (IllegalStateException e) {
+      }
+
+      release.countDown();
+      assertEquals(running.get().size(), 2);
+    }
+  }
+
+  @Test
+  public void badArguments() {
+    KDTree<LatLng> tree = new KDTree<>(randLatLngs(10));
+    try (KDAsyncExecutor<LatLng> executor =
+        new KDAsyncExecutor<>(tree, 8, 1, 1)) {
+      try {
+        executor.kNearestAsync(new LatLng(1.0, 1.0), 0);
+        fail();
+      } catch (IllegalArgumentException e) {
+      }
+    }
+
+    try {
+      new KDAsyncExecutor<>(tree, 0, 1, 1);
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.ClosestComparator;
+import personal.samdunietz.kdtree.KDCoordinator;
+import personal.samdunietz.kdtree.KDForest;
+import personal.samdunietz.kdtree.KDPartition;
+import personal.samdunietz.kdtree.KDTree;
+import personal.samdunietz.kdtree.LoopbackTransport;
+
+public class KDCoordinatorTest {
+
+  @Test
+  public void matchesBruteForce() {
+    List<Point> points = TestData.uniform(20000, 2, 1);
+    LoopbackTransport<Point> transport =
+        new LoopbackTransport<>(new KDForest<>(points, 16));
+    KDCoordinator<Point> coordinator = new KDCoordinator<>(transport, 4);
+    assertEquals(coordinator.getNumPartitions(), 16);
+
+    for (Point origin : TestData.uniform(50, 2, 2)) {
+      List<Point> expected = new ArrayList<>(points);
+      expected.sort(new ClosestComparator<>(origin));
+
+      assertEquals(coordinator.kNearestNeighbor(origin, 10),
+          expected.subList(0, 10));
+      assertEquals(coordinator.findWithinRadius(origin, 8),
+          expected.stream()
+              .filter(p -> p.euclidianDist(origin) < 8)
+              .collect(Collectors.toList()));
+    }
+  }
+
+  @Test
+  public void routesOnlyToPartitionsInBound() {
+    List<Point> points = TestData.uniform(20000, 2, 3);
+    LoopbackTransport<Point> transport =
+        new LoopbackTransport<>(new KDForest<>(points, 64));
+    KDCoordinator<Point> coordinator = new KDCoordinator<>(transport, 2);
+
+    for (Point origin : TestData.uniform(100, 2, 4)) {
+      coordinator.kNearestNeighbor(origin, 5);
+    }
+    // Only the partitions around each origin are asked, never all 64.
+    assertTrue(transport.getRequestCount() < 100 * 8);
+
+    long before = transport.getRequestCount();
+    assertTrue(coordinator.findWithinRadius(points.get(0), 0).isEmpty());
+    assertEquals(transport.getRequestCount(), before);
+  }
+
+  @Test
+  public void badInput() {
+    List<Point> points = TestData.uniform(100, 2, 5);
+    KDCoordinator<Point> coordinator = new KDCoordinator<>(
+        new LoopbackTransport<>(new KDForest<>(points, 4)), 2);
+    try {
+      coordinator.kNearestNeighbor(new Point(1, 2, 3), 3);
+      fail();
+    } catch (IllegalArgumentException e) { }
+    try {
+      coordinator.kNearestNeighbor(points.get(0), 0);
+      fail();
+    } catch (IllegalArgumentException e) { }
+    try {
+      coordinator.findWithinRadius(points.get(0), -1);
+      fail();
+    } catch (IllegalArgumentException e) { }
+    try {
+      new KDCoordinator<>(new LoopbackTransport<>(new KDForest<>(points, 4)),
+          0);
+      fail();
+    } catch (IllegalArgumentException e) { }
+    try {
+      new KDPartition<>(new KDTree<>(new ArrayList<Point>()));
+      fail();
+    } catch (IllegalArgumentException e) { }
+  }
+}
@@ -0,0 +1,75 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.KDForest;
+
+public class KDForestTest {
+
+  private final Random r = new Random();
+
+  private List<LatLng> randLatLngs(int k) {
+    List<LatLng> locs = new ArrayList<>();
+    for (int i = 0; i < k; i++) {
+      locs.add(new LatLng(r.nextDouble() * 90, r.nextDouble() * 90));
+    }
+    return locs;
+  }
+
+  @Test
+  public void shardsCoverData() {
+    List<LatLng> locs = randLatLngs(1000);
+    KDForest<LatLng> forest = new KDForest<>(locs, 7);
+    assertEquals(forest.getNumShards(), 7);
+    assertEquals(forest.size(), 1000);
+    assertEquals(new HashSet<>(forest.toList()), new HashSet<>(locs));
+    for (int i = 0; i < forest.getNumShards(); i++) {
+      int shardSize = forest.getShard(i).size();
+      assertTrue(shardSize == 142 || shardSize == 143);
+    }
+
+    KDForest<LatLng> empty = new KDForest<>(new ArrayList<LatLng>(), 3);
+    assertTrue(empty.isEmpty());
+    assertTrue(empty.kNearestNeighbor(new LatLng(1.0, 1.0), 3).isEmpty());
+  }
+
+  @Test
+  public void queriesMatchBruteForce() {
+    List<LatLng> locs = randLatLngs(2000);
+    KDForest<LatLng> forest = new KDForest<>(locs, 8);
+    for (LatLng origin : randLatLngs(50)) {
+      assertEquals(forest.kNearestNeighbor(origin, 10),
+          KDTreeTestUtils.kNearestNeighbor(locs, origin, 10));
+      assertEquals(forest.findWithinRadius(origin, 8.0),
+          KDTreeTestUtils.findWithinRadius(locs, origin, 8.0));
+    }
+  }
+
+  @Test
+  public void rebuildOneShard() {
+    List<LatLng> locs = randLatLngs(400);
+    KDForest<LatLng> forest = new KDForest<>(locs, 4);
+
+    List<LatLng> hotspot = new ArrayList<>(forest.getShard(2).toList());
+    hotspot.addAll(randLatLngs(100));
+    KDForest<LatLng> updated = forest.withShard(2, hotspot);
+
+    assertEquals(updated.size(), 500);
+    assertSame(updated.getShard(0), forest.getShard(0));
+    assertEquals(forest.size(), 400);
+
+    List<LatLng> all = updated.toList();
+    LatLng origin = new LatLng(45.0, 45.0);
+    assertEquals(updated.kNearestNeighbor(origin, 20),
+        KDTreeTestUtils.kNearestNeighbor(all, origin, 20));
+  }
+}
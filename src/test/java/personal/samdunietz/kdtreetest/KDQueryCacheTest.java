@@ -0,0 +1,79 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.KDQueryCache;
+import personal.samdunietz.kdtree.KDTree;
+
+import com.google.common.collect.Lists;
+
+public class KDQueryCacheTest {
+
+  private List<LatLng> grid() {
+    List<LatLng> locs = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      for (int j = 0; j < 20; j++) {
+        locs.add(new LatLng((double) i, (double) j));
+      }
+    }
+    return locs;
+  }
+
+  @Test
+  public void exactOrigins() {
+    List<LatLng> locs = grid();
+    KDTree<LatLng> kdt = new KDTree<>(locs);
+    KDQueryCache<LatLng> cache = new KDQueryCache<>(kdt, 10, 0);
+
+    LatLng origin = new LatLng(3.2, 4.7);
+    assertEquals(cache.kNearestNeighbor(origin, 5),
+        KDTreeTestUtils.kNearestNeighbor(locs, origin, 5));
+    assertEquals(cache.kNearestNeighbor(origin, 5),
+        KDTreeTestUtils.kNearestNeighbor(locs, origin, 5));
+    assertEquals(cache.findWithinRadius(origin, 2.5),
+        KDTreeTestUtils.findWithinRadius(locs, origin, 2.5));
+    assertEquals(cache.getHits(), 1);
+    assertEquals(cache.getMisses(), 2);
+    assertEquals(cache.size(), 2);
+  }
+
+  @Test
+  public void gridCellsShareEntries() {
+    KDTree<LatLng> kdt = new KDTree<>(grid());
+    KDQueryCache<LatLng> cache = new KDQueryCache<>(kdt, 10, 1.0);
+
+    // Both snap to the cell centered on (5.5, 5.5).
+    List<LatLng> first = cache.kNearestNeighbor(new LatLng(5.1, 5.2), 4);
+    List<LatLng> second = cache.kNearestNeighbor(new LatLng(5.9, 5.6), 4);
+    assertEquals(first, second);
+    assertEquals(
+        first, kdt.kNearestNeighbor(new LatLng(5.5, 5.5), 4));
+    assertEquals(cache.getHits(), 1);
+  }
+
+  @Test
+  public void evictionAndInvalidation() {
+    KDTree<LatLng> kdt = new KDTree<>(grid());
+    KDQueryCache<LatLng> cache = new KDQueryCache<>(kdt, 2, 0);
+
+    for (int i = 0; i < 5; i++) {
+      cache.kNearestNeighbor(new LatLng((double) i, 0.0), 1);
+    }
+    assertEquals(cache.size(), 2);
+    assertEquals(cache.getEvictions(), 3);
+
+    LatLng origin = new LatLng(4.0, 0.0);
+    cache.kNearestNeighbor(origin, 1);
+    assertEquals(cache.getHits(), 1);
+
+    LatLng only = new LatLng(50.0, 50.0);
+    cache.setTree(new KDTree<>(Lists.newArrayList(only)));
+    assertEquals(cache.size(), 0);
+    assertEquals(cache.kNearestNeighbor(origin, 1), Lists.newArrayList(only));
+  }
+}
@@ -0,0 +1,139 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.KDData;
+import personal.samdunietz.kdtree.KDTimeWindowIndex;
+
+public class KDTimeWindowIndexTest {
+
+  class Ping implements KDData {
+    final double x;
+    final double y;
+    final long time;
+
+    Ping(double x, double y, long time) {
+      this.x = x;
+      this.y = y;
+      this.time = time;
+    }
+
+    @Override
+    public double[] getLocData() {
+      return new double[]{x, y};
+    }
+  }
+
+  @Test
+  public void onlyLiveElementsAreFound() {
+    AtomicLong clock = new AtomicLong(0);
+    KDTimeWindowIndex<Ping> index =
+        new KDTimeWindowIndex<>(600, 60, p -> p.time, clock::get);
+
+    Random r = new Random(0);
+    List<Ping> all = new ArrayList<>();
+    for (long t = 0; t < 2000; t += 5) {
+      clock.set(t);
+      for (int i = 0; i < 3; i++) {
+        Ping ping = new Ping(r.nextDouble() * 50, r.nextDouble() * 50, t);
+        all.add(ping);
+        index.add(ping);
+      }
+
+      if (t % 100 == 0) {
+        long cutoff = t - 600;
+        List<Ping> live = all.stream()
+            .filter(p -> p.time >= cutoff)
+            .collect(Collectors.toList());
+        Ping origin = new Ping(r.nextDouble() * 50, r.nextDouble() * 50, t);
+        assertEquals(index.kNearestNeighbor(origin, 10),
+            KDTreeTestUtils.kNearestNeighbor(live, origin, 10));
+        assertEquals(index.findWithinRadius(origin, 10.0),
+            KDTreeTestUtils.findWithinRadius(live, origin, 10.0));
+      }
+    }
+
+    // Old buckets were dropped: at most the window plus one bucket's worth
+    // of pings remain.
+    assertTrue(index.size() <= (600 + 60) / 5 * 3 + 3);
+
+    clock.set(10000);
+    index.expire();
+    assertEquals(index.size(), 0);
+  }
+
+  @Test
+  public void lateElementsDontKeepOldBucketsAlive() {
+    AtomicLong clock = new AtomicLong(0);
+    KDTimeWindowIndex<Ping> index =
+        new KDTimeWindowIndex<>(600, 60, p -> p.time, clock::get);
+
+    // The first bucket gets one element stamped well ahead of the clock,
+    // and every later bucket gets late elements stamped well behind it, so
+    // buckets don't expire in the order they arrived.
+    Random r = new Random(1);
+    List<Ping> all = new ArrayList<>();
+    Ping early = new Ping(25, 25, 1500);
+    all.add(early);
+    index.add(early);
+    for (long t = 0; t < 3000; t += 5) {
+      clock.set(t);
+      for (long time : new long[]{t, t, t - 500}) {
+        Ping ping = new Ping(r.nextDouble() * 50, r.nextDouble() * 50, time);
+        all.add(ping);
+        index.add(ping);
+      }
+
+      if (t % 100 == 0) {
+        long cutoff = t - 600;
+        List<Ping> live = all.stream()
+            .filter(p -> p.time >= cutoff)
+            .collect(Collectors.toList());
+        Ping origin = new Ping(r.nextDouble() * 50, r.nextDouble() * 50, t);
+        assertEquals(index.kNearestNeighbor(origin, 10),
+            KDTreeTestUtils.kNearestNeighbor(live, origin, 10));
+        assertEquals(index.findWithinRadius(origin, 10.0),
+            KDTreeTestUtils.findWithinRadius(live, origin, 10.0));
+      }
+
+      // Apart from the first bucket, at most the window plus one bucket's
+      // worth of pings remain.
+      assertTrue(index.size() <= (600 + 60) / 5 * 3 + 3 + 12 * 3 + 1);
+    }
+  }
+
+  @Test
+  public void expiredElementsAreIgnored() {
+    AtomicLong clock = new AtomicLong(1000);
+    KDTimeWindowIndex<Ping> index =
+        new KDTimeWindowIndex<>(100, 10, p -> p.time, clock::get);
+    index.add(new Ping(1, 1, 850));
+    assertEquals(index.size(), 0);
+  }
+
+  @Test
+  public void wrongDimensionsAreRejected() {
+    KDTimeWindowIndex<Point> index =
+        new KDTimeWindowIndex<>(100, 10, p -> 0, () -> 0);
+    index.add(new Point(1, 1));
+    try {
+      index.add(new Point(1, 1, 1));
+      fail();
+    } catch (IllegalArgumentException e) { }
+    try {
+      index.add(new Point());
+      fail();
+    } catch (IllegalArgumentException e) { }
+    assertEquals(index.size(), 1);
+  }
+}
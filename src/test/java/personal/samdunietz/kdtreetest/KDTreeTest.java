@@ -7,10 +7,13 @@ import static org.junit.Assert.fail;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.junit.Test;
@@ -18,6 +21,7 @@ import org.junit.Test;
 import personal.samdunietz.kdtree.ClosestComparator;
 import personal.samdunietz.kdtree.KDData;
 import personal.samdunietz.kdtree.KDTree;
+import personal.samdunietz.kdtree.QueryOrder;
 
 import com.google.common.collect.Lists;
 
@@ -249,6 +253,308 @@ public class KDTreeTest {
         KDTreeTestUtils.kNearestNeighbor(locs, origin, numNeighbors));
   }
 
+  @Test
+  public void knnJoin() {
+    List<LatLng> refs = randLatLngs(2000);
+    List<LatLng> queries = randLatLngs(3000);
+    KDTree<LatLng> refTree = new KDTree<>(refs);
+    KDTree<LatLng> queryTree = new KDTree<>(queries);
+
+    int k = 5;
+    Map<LatLng, List<LatLng>> joined = refTree.knnJoin(queryTree, k);
+    assertEquals(joined.size(), queries.size());
+    for (LatLng query : queries) {
+      assertEquals(
+          joined.get(query),
+          KDTreeTestUtils.kNearestNeighbor(refs, query, k));
+    }
+
+    KDTree<LatLng> emptyTree = new KDTree<>(new ArrayList<LatLng>());
+    assertTrue(refTree.knnJoin(emptyTree, k).isEmpty());
+    Map<LatLng, List<LatLng>> noRefs = emptyTree.knnJoin(queryTree, k);
+    assertEquals(noRefs.size(), queries.size());
+    assertTrue(noRefs.values().stream().allMatch(List::isEmpty));
+  }
+
+  @Test
+  public void forEachPairWithinRadius() {
+    List<LatLng> locs = randLatLngs(3000);
+    KDTree<LatLng> kdt = new KDTree<>(locs);
+    double radius = 2.0;
+
+    Set<List<Integer>> expected = new HashSet<>();
+    for (int i = 0; i < locs.size(); i++) {
+      for (int j = i + 1; j < locs.size(); j++) {
+        if (locs.get(i).euclidianDist(locs.get(j)) < radius) {
+          expected.add(Lists.newArrayList(i, j));
+        }
+      }
+    }
+
+    Map<LatLng, Integer> indices = new IdentityHashMap<>();
+    for (int i = 0; i < locs.size(); i++) {
+      indices.put(locs.get(i), i);
+    }
+    List<List<Integer>> found = Collections.synchronizedList(new ArrayList<>());
+    kdt.forEachPairWithinRadius(radius, (a, b, dist) -> {
+      assertEquals(a.euclidianDist(b), dist, 0);
+      int i = indices.get(a);
+      int j = indices.get(b);
+      found.add(Lists.newArrayList(Math.min(i, j), Math.max(i, j)));
+    });
+
+    assertEquals(found.size(), expected.size());
+    assertEquals(new HashSet<>(found), expected);
+  }
+
+  @Test
+  public void batchQueries() {
+    List<LatLng> locs = randLatLngs(500);
+    List<LatLng> origins = randLatLngs(200);
+    KDTree<LatLng> kdt = new KDTree<>(locs);
+
+    for (QueryOrder order : QueryOrder.values()) {
+      List<List<LatLng>> nearest = kdt.kNearestNeighbors(origins, 3, order);
+      List<List<LatLng>> within = kdt.findWithinRadius(origins, 5.0, order);
+      for (int i = 0; i < origins.size(); i++) {
+        assertEquals(nearest.get(i),
+            KDTreeTestUtils.kNearestNeighbor(locs, origins.get(i), 3));
+        assertEquals(within.get(i),
+            KDTreeTestUtils.findWithinRadius(locs, origins.get(i), 5.0));
+      }
+    }
+  }
+
+  @Test
+  public void forEachWithinRadius() {
+    List<LatLng> locs = randLatLngs(1000);
+    KDTree<LatLng> kdt = new KDTree<>(locs);
+    LatLng origin = randLatLng();
+    double radius = 15.0;
+    List<LatLng> expected =
+        KDTreeTestUtils.findWithinRadius(locs, origin, radius);
+
+    Set<LatLng> unsorted = new HashSet<>();
+    kdt.forEachWithinRadius(origin, radius, (loc, dist) -> {
+      assertEquals(loc.euclidianDist(origin), dist, 0);
+      return unsorted.add(loc);
+    });
+    assertEquals(unsorted, new HashSet<>(expected));
+
+    List<LatLng> sorted = new ArrayList<>();
+    kdt.forEachWithinRadius(origin, radius, true, (loc, dist) -> {
+      return sorted.add(loc);
+    });
+    assertEquals(sorted, expected);
+
+    // Stop after the 3 nearest.
+    List<LatLng> nearest = new ArrayList<>();
+    kdt.forEachWithinRadius(origin, radius, true, (loc, dist) -> {
+      nearest.add(loc);
+      return nearest.size() < 3;
+    });
+    assertEquals(nearest, expected.subList(0, Math.min(3, expected.size())));
+
+    List<LatLng> first = new ArrayList<>();
+    kdt.forEachWithinRadius(origin, radius, (loc, dist) -> !first.add(loc));
+    assertEquals(first.size(), Math.min(1, expected.size()));
+  }
+
+  @Test
+  public void kNearestWithinRadius() {
+    List<LatLng> locs = randLatLngs(1000);
+    KDTree<LatLng> kdt = new KDTree<>(locs);
+    for (int i = 0; i < 20; i++) {
+      LatLng origin = randLatLng();
+      for (double radius : new double[]{0.0, 2.0, 10.0, 200.0}) {
+        List<LatLng> expected =
+            KDTreeTestUtils.findWithinRadius(locs, origin, radius);
+        assertEquals(kdt.kNearestWithinRadius(origin, 20, radius),
+            expected.subList(0, Math.min(20, expected.size())));
+      }
+    }
+
+    try {
+      kdt.kNearestWithinRadius(randLatLng(), 5, -1.0);
+      fail();
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test
+  public void mergeAndWithAdded() {
+    List<LatLng> aLocs = randLatLngs(300);
+    List<LatLng> bLocs = randLatLngs(200);
+    KDTree<LatLng> a = new KDTree<>(aLocs);
+    KDTree<LatLng> b = new KDTree<>(bLocs);
+
+    List<LatLng> all = new ArrayList<>(aLocs);
+    all.addAll(bLocs);
+    KDTree<LatLng> merged = KDTree.merge(a, b);
+    assertEquals(merged, new KDTree<>(all));
+    assertEquals(merged.size(), 500);
+    structureIsCorrectHelper(merged);
+
+    List<LatLng> delta = randLatLngs(50);
+    all.addAll(delta);
+    KDTree<LatLng> added = merged.withAdded(delta);
+    assertEquals(added, new KDTree<>(all));
+    structureIsCorrectHelper(added);
+    LatLng origin = randLatLng();
+    assertEquals(added.kNearestNeighbor(origin, 10),
+        KDTreeTestUtils.kNearestNeighbor(all, origin, 10));
+
+    // Merged orders sort -0.0 before 0.0 like the trees' own orders do, so
+    // equal locations still end up next to each other and share a node.
+    KDTree<Point> zeros = new KDTree<>(Lists.newArrayList(
+        new Point(0.0, 1), new Point(-0.0, 1)));
+    KDTree<Point> mergedZeros = KDTree.merge(zeros, zeros);
+    assertEquals(mergedZeros.size(), 4);
+    assertEquals(mergedZeros.depth(), 2);
+
+    // Subtrees keep no sorted orders, so theirs are sorted on merging.
+    KDTree<LatLng> left = a.getLeft();
+    KDTree<LatLng> withLeft = KDTree.merge(left, b);
+    structureIsCorrectHelper(withLeft);
+    assertEquals(withLeft.size(), left.size() + b.size());
+
+    KDTree<LatLng> empty = new KDTree<>(new ArrayList<LatLng>());
+    assertEquals(KDTree.merge(empty, a), a);
+    assertEquals(a.withAdded(new ArrayList<LatLng>()), a);
+  }
+
+  @Test
+  public void filteredKNearest() {
+    List<LatLng> locs = randLatLngs(2000);
+    KDTree<LatLng> kdt =
+        new KDTree<>(locs, loc -> loc.getLat().intValue() / 10);
+    for (int i = 0; i < 20; i++) {
+      LatLng origin = randLatLng();
+      for (int category = 0; category < 10; category++) {
+        int c = category;
+        List<LatLng> inCategory = locs.stream()
+            .filter(loc -> loc.getLat().intValue() / 10 == c)
+            .collect(Collectors.toList());
+        List<LatLng> expected =
+            KDTreeTestUtils.kNearestNeighbor(inCategory, origin, 5);
+        assertEquals(kdt.kNearestInCategory(origin, 5, category), expected);
+        assertEquals(kdt.kNearestNeighbor(origin, 5,
+            loc -> loc.getLat().intValue() / 10 == c), expected);
+      }
+    }
+
+    // Subtrees and added elements keep indexing categories.
+    assertEquals(kdt.getLeft().kNearestInCategory(randLatLng(), 3, 4).size(),
+        3);
+    LatLng added = new LatLng(95.5, 1.0);
+    assertEquals(kdt.withAdded(Lists.newArrayList(added))
+        .kNearestInCategory(randLatLng(), 3, 9), Lists.newArrayList(added));
+
+    try {
+      new KDTree<>(locs).kNearestInCategory(randLatLng(), 3, 1);
+      fail();
+    } catch (IllegalStateException e) { }
+  }
+
+  @Test
+  public void weightedQueries() {
+    List<LatLng> locs = randLatLngs(1000);
+    KDTree<LatLng> kdt = new KDTree<>(locs);
+    double[][] allWeights = {{1, 1}, {3, 0.5}, {0, 2}, {0.1, 10}};
+    for (double[] weights : allWeights) {
+      for (int i = 0; i < 10; i++) {
+        LatLng origin = randLatLng();
+        List<LatLng> expected = new ArrayList<>(locs);
+        expected.sort((a, b) -> Double.compare(
+            weightedDist(a, origin, weights), weightedDist(b, origin, weights)));
+        assertEquals(kdt.kNearestWeighted(origin, 10, weights),
+            expected.subList(0, 10));
+
+        List<LatLng> within = kdt.findWithinRadiusWeighted(origin, 15, weights);
+        assertEquals(within, expected.stream()
+            .filter(loc -> weightedDist(loc, origin, weights) < 15)
+            .collect(Collectors.toList()));
+      }
+    }
+
+    try {
+      kdt.kNearestWeighted(randLatLng(), 3, new double[]{1});
+      fail();
+    } catch (IllegalArgumentException e) { }
+    try {
+      kdt.kNearestWeighted(randLatLng(), 3, new double[]{1, -1});
+      fail();
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test
+  public void duplicateLocations() {
+    KDTree<Point> same = new KDTree<>(TestData.duplicates(10000, 3, 1));
+    assertEquals(same.size(), 10000);
+    assertEquals(same.depth(), 1);
+    assertEquals(same.getRootElements().size(), 10000);
+
+    // 20 locations with 50 points at each.
+    List<Point> points = new ArrayList<>();
+    for (int seed = 0; seed < 20; seed++) {
+      points.addAll(TestData.duplicates(50, 2, seed));
+    }
+    KDTree<Point> kdt = new KDTree<>(points);
+    assertEquals(kdt.size(), 1000);
+    assertTrue(kdt.depth() <= 5);
+    assertEquals(identitySet(kdt.toList()).size(), 1000);
+
+    Random r = new Random(0);
+    for (int i = 0; i < 10; i++) {
+      Point origin = new Point(r.nextDouble() * 100, r.nextDouble() * 100);
+      List<Point> expected = new ArrayList<>(points);
+      expected.sort(new ClosestComparator<>(origin));
+
+      List<Point> nearest = kdt.kNearestNeighbor(origin, 75);
+      assertEquals(identitySet(nearest).size(), 75);
+      for (int j = 0; j < 75; j++) {
+        assertEquals(nearest.get(j).euclidianDist(origin),
+            expected.get(j).euclidianDist(origin), 0);
+      }
+
+      Set<Point> within = identitySet(expected.stream()
+          .filter(p -> p.euclidianDist(origin) < 30)
+          .collect(Collectors.toList()));
+      assertEquals(identitySet(kdt.findWithinRadius(origin, 30)), within);
+      assertEquals(kdt.countWithinRadius(origin, 30, Integer.MAX_VALUE),
+          within.size());
+    }
+
+    AtomicInteger pairs = new AtomicInteger();
+    kdt.forEachPairWithinRadius(10, (a, b, dist) -> pairs.incrementAndGet());
+    int expectedPairs = 0;
+    for (int i = 0; i < points.size(); i++) {
+      for (int j = i + 1; j < points.size(); j++) {
+        if (points.get(i).euclidianDist(points.get(j)) < 10) {
+          expectedPairs++;
+        }
+      }
+    }
+    assertEquals(pairs.get(), expectedPairs);
+
+    Map<Point, List<Point>> joined = kdt.knnJoin(kdt, 3);
+    assertEquals(joined.size(), 1000);
+    for (Map.Entry<Point, List<Point>> entry : joined.entrySet()) {
+      assertEquals(entry.getValue().get(2).euclidianDist(entry.getKey()), 0, 0);
+    }
+  }
+
+  private static Set<Point> identitySet(List<Point> points) {
+    Set<Point> set = Collections.newSetFromMap(new IdentityHashMap<>());
+    set.addAll(points);
+    return set;
+  }
+
+  private double weightedDist(LatLng a, LatLng b, double[] weights) {
+    double latDiff = weights[0] * (a.getLat() - b.getLat());
+    double lngDiff = weights[1] * (a.getLng() - b.getLng());
+    return Math.sqrt(latDiff * latDiff + lngDiff * lngDiff);
+  }
+
   private LatLng randLatLng() {
     Random r = new Random();
     double lat = r.nextDouble() + r.nextInt(90);
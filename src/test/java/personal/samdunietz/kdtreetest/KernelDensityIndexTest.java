@@ -0,0 +1,94 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.DoubleUnaryOperator;
+
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.KernelDensityIndex;
+
+public class KernelDensityIndexTest {
+
+  private final Random r = new Random();
+
+  private List<LatLng> randLatLngs(int k) {
+    List<LatLng> locs = new ArrayList<>();
+    for (int i = 0; i < k; i++) {
+      locs.add(new LatLng(r.nextDouble() * 90, r.nextDouble() * 90));
+    }
+    return locs;
+  }
+
+  private double weightOf(LatLng loc) {
+    return 1 + loc.getLng() / 90;
+  }
+
+  @Test
+  public void densityWithinTolerance() {
+    List<LatLng> locs = randLatLngs(5000);
+    KernelDensityIndex<LatLng> index =
+        new KernelDensityIndex<>(locs, this::weightOf);
+    DoubleUnaryOperator gaussian = dist -> Math.exp(-dist * dist / 50);
+
+    double totalWeight = 0;
+    for (LatLng loc : locs) {
+      totalWeight += weightOf(loc);
+    }
+    assertEquals(index.totalWeight(), totalWeight, 1e-6);
+
+    for (LatLng origin : randLatLngs(20)) {
+      double exact = 0;
+      for (LatLng loc : locs) {
+        exact += weightOf(loc)
+            * gaussian.applyAsDouble(loc.euclidianDist(origin));
+      }
+      assertEquals(index.kernelDensity(origin, gaussian, 0), exact, 1e-9);
+      for (double tolerance : new double[]{1e-6, 1e-3, 0.1}) {
+        double approx = index.kernelDensity(origin, gaussian, tolerance);
+        assertTrue(Math.abs(approx - exact) <= tolerance * totalWeight);
+      }
+    }
+  }
+
+  @Test
+  public void weightWithinRadius() {
+    List<LatLng> locs = randLatLngs(3000);
+    KernelDensityIndex<LatLng> index =
+        new KernelDensityIndex<>(locs, this::weightOf);
+    for (LatLng origin : randLatLngs(20)) {
+      for (double radius : new double[]{0, 5, 30, 200}) {
+        double expected = 0;
+        for (LatLng loc : locs) {
+          if (loc.euclidianDist(origin) < radius) {
+            expected += weightOf(loc);
+          }
+        }
+        assertEquals(index.weightWithinRadius(origin, radius), expected, 1e-6);
+      }
+    }
+  }
+
+  @Test
+  public void edgeCases() {
+    KernelDensityIndex<LatLng> empty =
+        new KernelDensityIndex<>(new ArrayList<LatLng>());
+    assertEquals(empty.kernelDensity(new LatLng(1.0, 1.0), d -> 1, 0), 0, 0);
+
+    KernelDensityIndex<LatLng> unweighted =
+        new KernelDensityIndex<>(randLatLngs(100));
+    assertEquals(
+        unweighted.kernelDensity(new LatLng(1.0, 1.0), d -> 1, 0.5), 100, 1e-9);
+
+    try {
+      new KernelDensityIndex<>(randLatLngs(10), loc -> -1);
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
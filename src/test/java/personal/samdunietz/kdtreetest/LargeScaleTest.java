@@ -0,0 +1,129 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.DoubleKDTree;
+import personal.samdunietz.kdtree.KDData;
+import personal.samdunietz.kdtree.KDTree;
+
+/** Checks every query type against brute force on large data sets of
+ * every TestData shape. Ties are common in some shapes, so results are
+ * compared by distance, or as sets, rather than element by element.
+ */
+public class LargeScaleTest {
+
+  private static final int SIZE = 20000;
+  private static final int QUERIES = 25;
+  private static final int K = 10;
+
+  @Test
+  public void allShapesMatchBruteForce() {
+    long seed = 46;
+    for (TestData.Shape shape : TestData.Shape.values()) {
+      for (int numDims : new int[]{2, 3, 5}) {
+        List<Point> points = TestData.generate(shape, SIZE, numDims, seed++);
+        checkAll(shape + " " + numDims + "d", points, numDims, seed++);
+      }
+    }
+  }
+
+  private void checkAll(
+      String name, List<Point> points, int numDims, long seed) {
+    KDTree<Point> tree = new KDTree<>(points);
+    double[] flat = new double[SIZE * numDims];
+    for (int i = 0; i < SIZE; i++) {
+      System.arraycopy(points.get(i).getLocData(), 0, flat, i * numDims,
+          numDims);
+    }
+    DoubleKDTree doubleTree = new DoubleKDTree(flat, numDims, null);
+
+    // Half the origins are data points, so exact ties get exercised.
+    List<Point> origins = new ArrayList<>(
+        TestData.uniform(QUERIES / 2, numDims, seed));
+    for (int i = 0; origins.size() < QUERIES; i += SIZE / QUERIES) {
+      origins.add(points.get(i));
+    }
+
+    for (Point origin : origins) {
+      double[] sorted = new double[SIZE];
+      for (int i = 0; i < SIZE; i++) {
+        sorted[i] = points.get(i).euclidianDist(origin);
+      }
+      Arrays.sort(sorted);
+      double[] nearestK = Arrays.copyOf(sorted, K);
+      double radius = radiusPast(sorted, 50);
+      List<Point> withinRadius = new ArrayList<>();
+      for (Point point : points) {
+        if (point.euclidianDist(origin) < radius) {
+          withinRadius.add(point);
+        }
+      }
+
+      assertEquals(name, tree.nearestNeighbor(origin).euclidianDist(origin),
+          sorted[0], 0);
+      assertArrayEquals(name,
+          dists(tree.kNearestNeighbor(origin, K), origin), nearestK, 0);
+      assertArrayEquals(name,
+          dists(tree.kNearestWithinRadius(origin, K, radius), origin),
+          Arrays.copyOf(nearestK, Math.min(K, withinRadius.size())), 0);
+      assertEquals(name, new HashSet<>(tree.findWithinRadius(origin, radius)),
+          new HashSet<>(withinRadius));
+      assertEquals(name,
+          tree.countWithinRadius(origin, radius, Integer.MAX_VALUE),
+          withinRadius.size());
+
+      int[] visited = {0};
+      tree.forEachWithinRadius(origin, radius, (item, dist) -> {
+        visited[0]++;
+        return true;
+      });
+      assertEquals(name, visited[0], withinRadius.size());
+
+      int[] ids = new int[SIZE];
+      double[] doubleDists = new double[SIZE];
+      int found = doubleTree.kNearestNeighbor(
+          origin.getLocData(), K, ids, doubleDists);
+      assertArrayEquals(name, Arrays.copyOf(doubleDists, found), nearestK,
+          1e-9);
+      assertEquals(name, doubleTree.findWithinRadius(
+          origin.getLocData(), radius, ids, doubleDists),
+          withinRadius.size());
+    }
+
+    KDTree<Point> queryTree = new KDTree<>(origins);
+    Map<Point, List<Point>> joined = tree.knnJoin(queryTree, K);
+    for (Point origin : origins) {
+      assertArrayEquals(name, dists(joined.get(origin), origin),
+          dists(tree.kNearestNeighbor(origin, K), origin), 0);
+    }
+  }
+
+  // A radius between sorted[index] and the next larger distance, so no
+  // point lies so near its boundary that rounding could decide whether it
+  // is inside.
+  private double radiusPast(double[] sorted, int index) {
+    for (int i = index + 1; i < sorted.length; i++) {
+      if (sorted[i] > sorted[index]) {
+        return (sorted[index] + sorted[i]) / 2;
+      }
+    }
+    return sorted[index] + 1;
+  }
+
+  private double[] dists(List<? extends KDData> items, KDData origin) {
+    double[] dists = new double[items.size()];
+    for (int i = 0; i < dists.length; i++) {
+      dists[i] = items.get(i).euclidianDist(origin);
+    }
+    return dists;
+  }
+}
@@ -0,0 +1,60 @@
+package personal.samdunietz.kdtreetest;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.DoubleKDTree;
+import personal.samdunietz.kdtree.DoubleKDTree.Layout;
+
+/** Compares query throughput of DoubleKDTree layouts on a large tree.
+ * Not run by default; run with
+ * mvn test -Dtest=LayoutBenchmark -Dkdtree.benchmark.size=10000000
+ * (a 10M point tree needs about 1GB of heap).
+ */
+public class LayoutBenchmark {
+
+  private static final int DIMS = 2;
+  private static final int QUERIES = 2_000_000;
+  private static final int ROUNDS = 3;
+
+  @Test
+  public void compareLayouts() {
+    int size = Integer.getInteger("kdtree.benchmark.size", 10_000_000);
+    Random r = new Random(32);
+    double[] coords = new double[size * DIMS];
+    for (int i = 0; i < coords.length; i++) {
+      coords[i] = r.nextDouble();
+    }
+    double[][] origins = new double[QUERIES][DIMS];
+    for (double[] origin : origins) {
+      for (int d = 0; d < DIMS; d++) {
+        origin[d] = r.nextDouble();
+      }
+    }
+
+    for (Layout layout : Layout.values()) {
+      long start = System.nanoTime();
+      DoubleKDTree tree = new DoubleKDTree(coords, DIMS, null, layout);
+      long buildNanos = System.nanoTime() - start;
+
+      int[] ids = new int[10];
+      double[] dists = new double[10];
+      long checksum = 0;
+      long bestNanos = Long.MAX_VALUE;
+      for (int round = 0; round < ROUNDS; round++) {
+        start = System.nanoTime();
+        for (double[] origin : origins) {
+          checksum += tree.nearestNeighbor(origin);
+          checksum += tree.kNearestNeighbor(origin, 10, ids, dists);
+        }
+        bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+      }
+
+      System.out.printf(
+          "%s: %d points, build %.2f s, %.0f ns per nn + 10nn query (%d)%n",
+          layout, size, buildNanos / 1e9,
+          (double) bestNanos / QUERIES, checksum);
+    }
+  }
+}
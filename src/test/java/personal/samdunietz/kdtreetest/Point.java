@@ -0,0 +1,32 @@
+package personal.samdunietz.kdtreetest;
+
+import java.util.Arrays;
+
+import personal.samdunietz.kdtree.KDData;
+
+/** KDData over a fixed coordinate array. Unlike LatLng, getLocData hands
+ * back the same array every time, so it allocates nothing.
+ */
+public class Point implements KDData {
+
+  private final double[] loc;
+
+  public Point(double... loc) {
+    this.loc = loc;
+  }
+
+  @Override
+  public double[] getLocData() {
+    return loc;
+  }
+
+  @Override
+  public int getDims() {
+    return loc.length;
+  }
+
+  @Override
+  public String toString() {
+    return "Point " + Arrays.toString(loc);
+  }
+}
@@ -0,0 +1,133 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.ClosestComparator;
+import personal.samdunietz.kdtree.RPForest;
+import personal.samdunietz.kdtree.RPForest.SplitRule;
+
+public class RPForestTest {
+
+  private static final int DIMS = 32;
+
+  private List<Point> bruteForce(List<Point> points, Point origin, int k) {
+    List<Point> sorted = new ArrayList<>(points);
+    sorted.sort(new ClosestComparator<>(origin));
+    return sorted.subList(0, k);
+  }
+
+  @Test
+  public void exactWithFullBudget() {
+    List<Point> points = TestData.gaussianClusters(3000, DIMS, 8, 1);
+    for (SplitRule rule : SplitRule.values()) {
+      RPForest<Point> forest = new RPForest<>(points, 4, 16, rule, 7);
+      assertEquals(forest.size(), 3000);
+      assertEquals(forest.getNumTrees(), 4);
+      for (Point origin : TestData.uniform(20, DIMS, 2)) {
+        assertEquals(forest.kNearestNeighbor(origin, 10, points.size()),
+            bruteForce(points, origin, 10));
+      }
+    }
+  }
+
+  // Points on a random 4 dimensional subspace of DIMS dimensions, like
+  // embeddings, whose intrinsic dimension is much lower than their length.
+  private List<Point> embedded(int n, long seed) {
+    Random r = new Random(seed);
+    double[][] basis = new double[4][DIMS];
+    for (double[] vector : basis) {
+      for (int i = 0; i < DIMS; i++) {
+        vector[i] = r.nextGaussian();
+      }
+    }
+    List<Point> points = new ArrayList<>(n);
+    for (Point latent : TestData.uniform(n, 4, seed + 1)) {
+      double[] loc = new double[DIMS];
+      for (int j = 0; j < 4; j++) {
+        for (int i = 0; i < DIMS; i++) {
+          loc[i] += latent.getLocData()[j] * basis[j][i];
+        }
+      }
+      points.add(new Point(loc));
+    }
+    return points;
+  }
+
+  @Test
+  public void ensembleRecall() {
+    List<Point> all = embedded(20100, 3);
+    List<Point> points = all.subList(0, 20000);
+    List<Point> queries = all.subList(20000, 20100);
+    for (SplitRule rule : SplitRule.values()) {
+      RPForest<Point> single = new RPForest<>(points, 1, 32, rule, 5);
+      RPForest<Point> ensemble = new RPForest<>(points, 8, 32, rule, 5);
+
+      int singleFound = 0;
+      int ensembleFound = 0;
+      for (Point origin : queries) {
+        List<Point> expected = bruteForce(points, origin, 10);
+        List<Point> fromSingle = single.kNearestNeighbor(origin, 10);
+        List<Point> fromEnsemble = ensemble.kNearestNeighbor(origin, 10);
+        assertEquals(fromEnsemble.size(), 10);
+        for (Point p : expected) {
+          singleFound += fromSingle.contains(p) ? 1 : 0;
+          ensembleFound += fromEnsemble.contains(p) ? 1 : 0;
+        }
+      }
+      assertTrue(ensembleFound >= singleFound);
+      assertTrue(ensembleFound >= 0.9 * 10 * queries.size());
+    }
+  }
+
+  @Test
+  public void duplicatesAndEmpty() {
+    List<Point> same = TestData.duplicates(500, DIMS, 1);
+    RPForest<Point> forest =
+        new RPForest<>(same, 2, 8, SplitRule.PRINCIPAL_AXIS, 0);
+    assertEquals(forest.kNearestNeighbor(same.get(0), 5).size(), 5);
+
+    RPForest<Point> empty = new RPForest<>(
+        new ArrayList<>(), 2, 8, SplitRule.RANDOM_PROJECTION, 0);
+    assertTrue(empty.isEmpty());
+    assertTrue(empty.kNearestNeighbor(same.get(0), 5).isEmpty());
+  }
+
+  @Test
+  public void badInput() {
+    List<Point> points = TestData.uniform(100, DIMS, 1);
+    try {
+      new RPForest<>(points, 0, 8, SplitRule.RANDOM_PROJECTION, 0);
+      fail();
+    } catch (IllegalArgumentException e) { }
+    try {
+      new RPForest<>(points, 2, 0, SplitRule.RANDOM_PROJECTION, 0);
+      fail();
+    } catch (IllegalArgumentException e) { }
+
+    List<Point> mixed = new ArrayList<>(points);
+    mixed.add(new Point(1, 2));
+    try {
+      new RPForest<>(mixed, 2, 8, SplitRule.RANDOM_PROJECTION, 0);
+      fail();
+    } catch (IllegalArgumentException e) { }
+
+    RPForest<Point> forest =
+        new RPForest<>(points, 2, 8, SplitRule.RANDOM_PROJECTION, 0);
+    try {
+      forest.kNearestNeighbor(new Point(1, 2), 3);
+      fail();
+    } catch (IllegalArgumentException e) { }
+    try {
+      forest.kNearestNeighbor(points.get(0), 0);
+      fail();
+    } catch (IllegalArgumentException e) { }
+  }
+}
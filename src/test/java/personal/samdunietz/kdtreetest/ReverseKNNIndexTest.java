@@ -0,0 +1,75 @@
+package personal.samdunietz.kdtreetest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import personal.samdunietz.kdtree.ReverseKNNIndex;
+
+public class ReverseKNNIndexTest {
+
+  private final Random r = new Random();
+
+  private List<LatLng> randLatLngs(int k) {
+    List<LatLng> locs = new ArrayList<>();
+    for (int i = 0; i < k; i++) {
+      locs.add(new LatLng(r.nextDouble() * 90, r.nextDouble() * 90));
+    }
+    return locs;
+  }
+
+  private List<LatLng> bruteReverse(List<LatLng> locs, LatLng origin, int k) {
+    List<LatLng> reverse = new ArrayList<>();
+    for (LatLng loc : locs) {
+      List<Double> dists = new ArrayList<>();
+      for (LatLng other : locs) {
+        if (other != loc) {
+          dists.add(other.euclidianDist(loc));
+        }
+      }
+      dists.sort(null);
+      if (dists.size() < k || loc.euclidianDist(origin) <= dists.get(k - 1)) {
+        reverse.add(loc);
+      }
+    }
+    return reverse;
+  }
+
+  @Test
+  public void matchesBruteForce() {
+    List<LatLng> locs = randLatLngs(500);
+    for (int k : new int[]{1, 3, 10}) {
+      ReverseKNNIndex<LatLng> index = new ReverseKNNIndex<>(locs, k);
+      assertEquals(index.getK(), k);
+      for (LatLng origin : randLatLngs(30)) {
+        assertEquals(new HashSet<>(index.reverseKNearest(origin)),
+            new HashSet<>(bruteReverse(locs, origin, k)));
+      }
+    }
+  }
+
+  @Test
+  public void edgeCases() {
+    ReverseKNNIndex<LatLng> empty =
+        new ReverseKNNIndex<>(new ArrayList<LatLng>(), 2);
+    assertTrue(empty.reverseKNearest(new LatLng(1.0, 1.0)).isEmpty());
+
+    // With fewer than k other elements, every point is a reverse neighbor.
+    List<LatLng> few = randLatLngs(3);
+    ReverseKNNIndex<LatLng> small = new ReverseKNNIndex<>(few, 5);
+    assertEquals(small.reverseKNearest(new LatLng(80.0, 80.0)).size(), 3);
+
+    try {
+      new ReverseKNNIndex<>(few, 0);
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
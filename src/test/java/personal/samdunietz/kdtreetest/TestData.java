@@ -0,0 +1,94 @@
+package personal.samdunietz.kdtreetest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Deterministic generators of test points, each seeded so a failure can
+ * be reproduced.
+ */
+public final class TestData {
+
+  private TestData() {
+  }
+
+  /** The kinds of data set the generators make. */
+  public enum Shape {
+    UNIFORM, GAUSSIAN_CLUSTERS, DUPLICATES, COLLINEAR
+  }
+
+  public static List<Point> generate(
+      Shape shape, int n, int numDims, long seed) {
+    switch (shape) {
+      case UNIFORM:
+        return uniform(n, numDims, seed);
+      case GAUSSIAN_CLUSTERS:
+        return gaussianClusters(n, numDims, 8, seed);
+      case DUPLICATES:
+        return duplicates(n, numDims, seed);
+      default:
+        return collinear(n, numDims, seed);
+    }
+  }
+
+  /** Points uniform in [0, 100) on every dimension. */
+  public static List<Point> uniform(int n, int numDims, long seed) {
+    Random r = new Random(seed);
+    List<Point> points = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      double[] loc = new double[numDims];
+      for (int dim = 0; dim < numDims; dim++) {
+        loc[dim] = r.nextDouble() * 100;
+      }
+      points.add(new Point(loc));
+    }
+    return points;
+  }
+
+  /** Points in tight gaussian blobs around uniformly placed centers. */
+  public static List<Point> gaussianClusters(
+      int n, int numDims, int numClusters, long seed) {
+    Random r = new Random(seed);
+    List<Point> centers = uniform(numClusters, numDims, seed + 1);
+    List<Point> points = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      double[] center = centers.get(r.nextInt(numClusters)).getLocData();
+      double[] loc = new double[numDims];
+      for (int dim = 0; dim < numDims; dim++) {
+        loc[dim] = center[dim] + r.nextGaussian();
+      }
+      points.add(new Point(loc));
+    }
+    return points;
+  }
+
+  /** n separate points all at the same location. */
+  public static List<Point> duplicates(int n, int numDims, long seed) {
+    double[] loc = uniform(1, numDims, seed).get(0).getLocData();
+    List<Point> points = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      points.add(new Point(loc.clone()));
+    }
+    return points;
+  }
+
+  /** Points along one line, so every dimension is a function of the
+   * first, with a few of them repeated. */
+  public static List<Point> collinear(int n, int numDims, long seed) {
+    Random r = new Random(seed);
+    double[] direction = new double[numDims];
+    for (int dim = 0; dim < numDims; dim++) {
+      direction[dim] = r.nextDouble() * 2 - 1;
+    }
+    List<Point> points = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      double t = r.nextInt(4) == 0 ? r.nextInt(10) : r.nextDouble() * 100;
+      double[] loc = new double[numDims];
+      for (int dim = 0; dim < numDims; dim++) {
+        loc[dim] = 50 + t * direction[dim];
+      }
+      points.add(new Point(loc));
+    }
+    return points;
+  }
+}